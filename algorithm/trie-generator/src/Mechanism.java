@@ -14,11 +14,16 @@
 
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mechanism.*;
+import mechanism.graphs.Corpus;
 import mechanism.graphs.Graph;
 import mechanism.graphs.MoleculeGraph;
 import mechanism.graphs.RGKGraph;
@@ -58,6 +63,28 @@ public class Mechanism
 		int maxlen = 20;
 		int start = 1;
 		int end = Integer.MAX_VALUE;
+		int threads = 1;
+		boolean implicit = false;
+		boolean solve = false;
+		int diffcache = 0;
+		boolean spectral = false;
+		double[] lambdas = null;
+		boolean bylength = false;
+		String multi = null;
+		String update = null;
+		String corpusfile = null;
+		boolean serve = false;
+		int port = 0;
+		int plan = 0;
+		int shards = 0;
+		boolean merge = false;
+		boolean journal = false;
+		boolean stream = false;
+		boolean direct = false;
+		int mapsize = 0;
+		Precision precision = Precision.FLOAT64;
+		int memory = 0;
+		MatrixFormat format = MatrixFormat.TXT;
 		KernelType type = KernelType.MMECH;
 		KernelParams params = new KernelParams();
 		KernelOperationType op = KernelOperationType.DotProduct;
@@ -117,8 +144,41 @@ public class Mechanism
 							+ " -m --mol         - molecular inputs\n"
 							+ " -pn              - partial normalization\n"
 							+ " -r --reduced     - use reduced product graphs\n"
+							+ "    --implicit    - walks without product graphs (kronecker products)\n"
+							+ "    --solve       - infinite length marginal walks by a linear solve\n"
 							+ "    --start       - first index\n"
 							+ "    --end         - last index\n"
+							+ " -j N             - number of worker threads [default=" + threads + "]\n"
+							+ "    --diffcache MB - memory bound of cached diffusion matrices [default=unbounded]\n"
+							+ "    --spectral    - diffusions from eigendecompositions of the graphs\n"
+							+ "    --sweep L1,L2 - one matrix for each lambda from a single pass (EMECH/WK walks)\n"
+							+ "    --perlength   - also write the raw per-length values as a float tensor (MMECH/RWK)\n"
+							+ "    --multi FILE  - several kernels in one pass, one spec per line (e.g. '-t MMECH -g -r')\n"
+							+ "    --update FILE - extend the packed raw matrix FILE by the new graphs of the input\n"
+							+ "    --serve       - answer kernel rows of new graphs against the input, requests on stdin\n"
+							+ "    --port N      - with --serve, take requests on local port N instead\n"
+							+ "    --plan N      - split the rows into N shards of equal estimated cost, write the plan and exit\n"
+							+ "    --shards N    - run N such shards as local JVMs and merge their matrices\n"
+							+ "    --merge       - merge the partial matrices given as input files into a full one\n"
+							+ "    --corpus FILE - convert the input mol files into the graph corpus FILE and exit,\n"
+							+ "                    a corpus given as the only input file is read instead of mol files\n"
+							+ "    --resume      - journal the completed rows, a rerun with the same parameters resumes\n"
+							+ "    --stream      - write the rows as they are done instead of keeping the matrix,\n"
+							+ "                    txt and packed formats only, streamed rows are not journaled\n"
+							+ "    --direct      - keep the matrix off-heap (packed lower triangle)\n"
+							+ "    --mapsize MB  - with --direct, map matrices larger than this from a temporary file [default=never]\n"
+							+ "    --memory MB   - memory budget of the product graphs built at once [default=3/4 of the free heap]\n"
+							+ "    --precision P - storage precision of the matrix [default=float64]\n"
+							+ "    FLOAT64, FLOAT32, FLOAT16, INT8 (8 bits scaled per row)\n"
+							+ "    --write FMT   - matrix file format [default=txt]\n"
+							+ "    TXT             tab separated text\n"
+							+ "    PACKED          binary lower triangle with a header, float64\n"
+							+ "    PACKED32        binary lower triangle with a header, float32\n"
+							+ "    PACKED16        binary lower triangle with a header, float16\n"
+							+ "    PACKED8         binary lower triangle with a header, 8 bits scaled per row\n"
+							+ "    NPY             numpy .npy\n"
+							+ "    MAT             MATLAB v5 .mat\n"
+							+ "    --marginals   - parameter sweep of the kernels over the first two graphs into marginals.data\n"
 							+ " -o dir           - output dir\n"
 							+ " -h --help        - this help");
 
@@ -211,6 +271,14 @@ public class Mechanism
 		reduced = argstr.indexOf("-r ") >= 0 || argstr.indexOf("--reduced") >= 0;
 		nontottering = argstr.indexOf("-g ") >= 0;
 		moleculegraph = argstr.indexOf("-m ") >= 0 || argstr.indexOf("--mol") >= 0;
+		implicit = argstr.indexOf("--implicit") >= 0;
+		solve = argstr.indexOf("--solve") >= 0;
+		spectral = argstr.indexOf("--spectral") >= 0;
+		bylength = argstr.indexOf("--perlength") >= 0;
+		batch = argstr.indexOf("--marginals") >= 0;
+		journal = argstr.indexOf("--resume") >= 0;
+		stream = argstr.indexOf("--stream") >= 0;
+		direct = argstr.indexOf("--direct") >= 0;
 
 		
 		
@@ -221,6 +289,41 @@ public class Mechanism
 			start = getIntParam(argstr, "--start");
 		if (argstr.indexOf("--end") >= 0)
 			end = getIntParam(argstr, "--end");
+		
+		if (argstr.indexOf("-j ") >= 0)
+			threads = getIntParam(argstr, "-j");
+		if (argstr.indexOf("--diffcache") >= 0)
+			diffcache = getIntParam(argstr, "--diffcache");
+		if (argstr.indexOf("--mapsize") >= 0)
+			mapsize = getIntParam(argstr, "--mapsize");
+		if (argstr.indexOf("--memory") >= 0)
+			memory = getIntParam(argstr, "--memory");
+		if (argstr.indexOf("--precision") >= 0)
+			precision = Precision.valueOf(getStrParam(argstr, "--precision").toUpperCase());
+		if (argstr.indexOf("--write") >= 0)
+			format = MatrixFormat.valueOf(getStrParam(argstr, "--write").toUpperCase());
+		if (argstr.indexOf("--multi") >= 0)
+			multi = getStrParam(argstr, "--multi");
+		if (argstr.indexOf("--update") >= 0)
+			update = getStrParam(argstr, "--update");
+		if (argstr.indexOf("--corpus") >= 0)
+			corpusfile = getStrParam(argstr, "--corpus");
+		if (argstr.indexOf("--port") >= 0)
+			port = getIntParam(argstr, "--port");
+		serve = argstr.indexOf("--serve") >= 0 || port > 0;
+		if (argstr.indexOf("--plan") >= 0)
+			plan = getIntParam(argstr, "--plan");
+		if (argstr.indexOf("--shards") >= 0)
+			shards = getIntParam(argstr, "--shards");
+		merge = argstr.indexOf("--merge") >= 0;
+		if (argstr.indexOf("--sweep") >= 0)
+		{
+			String[] ls = getStrParam(argstr, "--sweep").split(",");
+			lambdas = new double[ls.length];
+			for (int i = 0; i < ls.length; i++)
+				lambdas[i] = Double.parseDouble(ls[i]);
+			lambda = lambdas[0];
+		}
 
 		
 		// normalization requires square matrix
@@ -241,29 +344,87 @@ public class Mechanism
 		params.nontottering = nontottering;
 		params.paths = paths;
 		params.start = start;
+		params.threads = threads;
+		params.implicit = implicit;
+		params.solve = solve;
+		params.diffcache = diffcache;
+		params.spectral = spectral;
+		params.lambdas = lambdas;
+		params.bylength = bylength;
+		params.direct = direct;
+		params.mapsize = mapsize;
+		params.precision = precision;
+		params.memory = memory;
 		params.reduced = reduced;
 		params.normalize = normalize;
 		params.partialnorm = partnorm;
 		params.op = op;
 		params.kw = kw;
+		solveParams(type, params);
+		implicitParams(type, params);
 		
 		Graph[] graphs;
 		
 		// Read reaction file names
 		List<String> files = new ArrayList<String>(args.length);
 		for (String s : args)
-			if (new File(s).isFile())
+			if (new File(s).isFile() && !s.equals(multi) && !s.equals(update) && !s.equals(corpusfile))
 				files.add(s);
 		
 		// always use sorted indices
 		Collections.sort(files);
 		
+		// a graph corpus replaces the mol files it was converted from
+		Corpus corpus = null;
+		if (files.size() == 1 && Corpus.isCorpus(files.get(0)))
+		{
+			corpus = new Corpus(files.get(0));
+			System.out.println("Reading graph corpus " + files.get(0) + " of " + corpus.getCount() + " graphs");
+			files = corpus.getFiles();
+		}
+		if ((corpus != null || corpusfile != null) && (type == KernelType.RGK || moleculegraph))
+		{
+			System.out.println("A graph corpus holds reaction graphs, not RGK or -m graphs");
+			System.exit(0);
+		}
+		if (corpus != null && corpusfile != null)
+		{
+			System.out.println("--corpus converts mol files, the input is a corpus already");
+			System.exit(0);
+		}
+		
+		// merge mode, the input files are partial matrices
+		if (merge)
+		{
+			mergeParts(files, normalize, outputdir, format);
+			return;
+		}
+		
 //		System.out.println(files);
 				
 			
 		// update 'end'
 		end = Math.min(end, files.size());
 		params.end = end;
+		
+		// extend mode, all rows of the matrix are needed
+		MatrixIO.Stored old = null;
+		if (update != null)
+		{
+			if (multi != null || batch || lambdas != null || bylength || type == KernelType.MG || type == KernelType.SG)
+			{
+				System.out.println("--update is not supported with --multi, --marginals, --sweep, --perlength or MG/SG kernels");
+				System.exit(0);
+			}
+			
+			old = readUpdate(update, type, params);
+			start = 1;
+			end = files.size();
+			params.start = start;
+			params.end = end;
+			params.stream = false;
+			stream = false;
+		}
 
 		if (type == KernelType.MG)
 			params.end = files.size(); // magic constant
@@ -271,27 +432,71 @@ public class Mechanism
 		System.out.println("Parameter string code: " + params.toString());
 		System.out.println("Reading reaction graphs 1.." + params.end + " of " + files.size() + " reaction graphs.."); 
 		
-		graphs = new Graph[params.end];
-		for (int i = 0; i < params.end; i++)
+		GraphLoader loader = new GraphLoader(threads);
+		if (corpus != null)
+			graphs = loader.read(corpus, params.end);
+		else
+			graphs = loader.read(files, params.end, type, moleculegraph);
+		
+		int[] oldindex = null;
+		if (old != null)
+			oldindex = orderGraphs(graphs, old, update);
+		
+		// sharded mode, the rows are split by the estimated cost of their cells
+		if (plan > 0 || shards > 0)
 		{
-			if (type == KernelType.RGK)
-				graphs[i] = new RGKGraph(files.get(i));
-			else if (!moleculegraph)
-				graphs[i] = new ReactionGraph(files.get(i));
-			else
-				graphs[i] = new MoleculeGraph(files.get(i));
+			ShardPlanner planner = new ShardPlanner(graphs);
+			int[][] ranges = planner.plan(Math.max(plan, shards));
 			
-			graphs[i].setIndex(i);
+			String planfile = outputdir + "kernel-" + type + "-" + params + ".plan";
+			planner.write(planfile, ranges);
+			System.out.println("Plan of " + ranges.length + " shards written to " + planfile);
+			for (int[] r : ranges)
+				System.out.println("  --start " + r[0] + " --end " + r[1]);
+			
+			if (shards > 0)
+				runShards(args, ranges, type, params, normalize, outputdir, files.size(), format);
+			return;
 		}
-
 		
 		System.out.println("Precomputing core distances...");
 		// Precompute the distances
-		for (Graph g : graphs)
-			g.computeDistances();
+		if (corpus == null)
+			loader.computeDistances(graphs);
+		
+		// conversion mode, the graphs are written into a corpus
+		if (corpusfile != null)
+		{
+			Corpus.write(corpusfile, files, graphs);
+			System.out.println("Graph corpus of " + graphs.length + " graphs written to " + corpusfile);
+			return;
+		}
+		
+		// query service mode
+		if (serve)
+		{
+			serve(params, graphs, moleculegraph, port);
+			return;
+		}
 		
 		System.out.println("Computing rows " + start+".."+end+" from [" + graphs.length + " x " + graphs.length + "] kernel matrix (lower triangle only, approx " + ((end-start+1)*end)/2 + " cells)");
 		
+		// multi-kernel mode
+		if (multi != null)
+		{
+			multi(multi, params, graphs, normalize, outputdir, files.size(), format);
+			System.out.println("Done");
+			return;
+		}
+		
+		// rows are streamed from the row loop of Kernel.compute() as text or packed rows, the
+		// rectangular formats need the whole matrix, the subgraph based kernels fill their
+		// matrices themselves and the lambda sweep needs the matrix
+		params.stream = stream && lambdas == null && (format == MatrixFormat.TXT || format.packedBytes() > 0) && (type == KernelType.MMECH || type == KernelType.EMECH || type == KernelType.WK
+				|| type == KernelType.RWK || type == KernelType.SP || type == KernelType.RGK);
+		if (stream && !params.stream)
+			System.out.println("Streaming is not supported for " + type + (lambdas != null ? " with a lambda sweep" : "") + " in " + format + " format, the matrix is written at the end");
+		
 		Kernel k = null;
 		if (type == KernelType.MMECH)     // heinonen's marginal and enumerative
 			k = new MarginalMechanismKernel(graphs, params);
@@ -334,6 +539,9 @@ public class Mechanism
 			k = new ShortestPathsKernel(graphs, params);
 		
 		
+		if (old != null)
+			presetRows(k, old, oldindex);
+		
 		// batch mode
 		if (batch)
 		{
@@ -341,30 +549,627 @@ public class Mechanism
 			return;
 		}
 		
+		if (lambdas != null && (!(k instanceof EnumerativeMechanismKernel) || paths))
+		{
+			System.out.println("Lambda sweep is only supported for EMECH/WK walks");
+			System.exit(0);
+		}
+		
 		// normal mode of operation
+		if (journal)
+			params.journal = outputdir + "kernel-" + type + "-" + params + "-" + params.start + "-" + params.end + ".journal";
+		
+		if (params.stream)
+			k.setStreamFile(matrixFile(type, params, outputdir, files.size(), format), format);
+		
 		// Compute kernels
 		k.compute();
 		System.gc();
 
+		if (bylength)
+		{
+			if (params.end == files.size() && params.start == 1)
+				k.writeLevelsToFile(outputdir + "kernel-" + type + "-" + params + "-full-perlength.bin");
+			else
+				k.writeLevelsToFile(outputdir + "kernel-" + type + "-" + params + "-" + params.start + "-" + params.end + "-perlength.bin");
+		}
+		
+		// streamed rows are written already
+		if (lambdas == null && !params.stream)
+			write(k, type, params, normalize, outputdir, files.size(), format);
+		else if (lambdas != null)
+		{
+			// one matrix per lambda from the stored level sums
+			for (double l : lambdas)
+			{
+				((EnumerativeMechanismKernel)k).setLambda(l);
+				write(k, type, params, normalize, outputdir, files.size(), format);
+			}
+		}
+		
+		System.out.println("Done");
+	}
+	
+	// kernel type of a spec line, MMECH if not given
+	private static KernelType specType(String spec)
+	{
+		if (spec.indexOf("-t") >= 0)
+			return KernelType.valueOf(getStrParam(spec, "-t"));
+		return KernelType.MMECH;
+	}
+	
+	// parameters of a spec line, options not given in it come from 'common'
+	private static KernelParams specParams(String spec, KernelParams common)
+	{
+		KernelParams params = common.clone();
+		
+		if (spec.indexOf("-f ") >= 0)
+		{
+			String m = getStrParam(spec, "-f");
+			
+			if (m.equals("EXP"))
+				params.kw = KernelWeight.Exponential;
+			else if (m.equals("LOGISTIC"))
+				params.kw = KernelWeight.Logistic;
+			else if (m.equals("DIFFUSION"))
+				params.kw = KernelWeight.Diffusion;
+		}
+		
+		if (spec.indexOf("-l") >= 0)
+			params.lambda = getDoubleParam(spec, "-l");
+		if (spec.indexOf("-b ") >= 0)
+			params.beta = getDoubleParam(spec, "-b");
+		if (spec.indexOf("-a") >= 0)
+			params.alpha = getDoubleParam(spec, "-a");
+		if (spec.indexOf("-e ") >= 0)
+			params.epsilon = getDoubleParam(spec, "-e");
+		if (spec.indexOf("-k") >= 0)
+			params.maxlen = getIntParam(spec, "-k");
+		
+		params.paths = params.paths || spec.indexOf("-p ") >= 0 || spec.indexOf("--paths") >= 0;
+		params.nontottering = params.nontottering || spec.indexOf("-g ") >= 0;
+		params.reduced = params.reduced || spec.indexOf("-r ") >= 0 || spec.indexOf("--reduced") >= 0;
+		params.partialnorm = params.partialnorm || spec.indexOf("-pn ") >= 0;
+		solveParams(specType(spec), params);
+		implicitParams(specType(spec), params);
+		
+		return params;
+	}
+	
+	// --solve only changes MMECH/RWK walks without level sums, the others keep their
+	// finite length and thus the parameter string of it, EMECH/WK walks on the implicit graph
+	private static void solveParams(KernelType type, KernelParams params)
+	{
+		if (!params.solve)
+			return;
+		if ((type == KernelType.MMECH || type == KernelType.RWK) && !params.nontottering && !params.paths && !params.partialnorm && !params.bylength)
+			return;
+		
+		String mode = params.paths ? " with paths" : params.nontottering ? " with non-tottering walks"
+			: params.partialnorm ? " with -pn" : params.bylength ? " with --perlength" : "";
+		if (type == KernelType.MMECH || type == KernelType.RWK || type == KernelType.EMECH || type == KernelType.WK)
+			System.out.println("Warning: --solve is not supported for " + type + mode + ", walks are cut at length " + params.maxlen);
+		else
+			System.out.println("Warning: --solve has no effect for " + type);
+		
+		params.solve = false;
+		if ((type == KernelType.EMECH || type == KernelType.WK) && !params.nontottering && !params.paths)
+			params.implicit = true;
+	}
+	
+	// --implicit only changes the walks of EMECH/WK, and of MMECH/RWK when solved
+	private static void implicitParams(KernelType type, KernelParams params)
+	{
+		if (!params.implicit)
+			return;
+		if ((type == KernelType.EMECH || type == KernelType.WK) && !params.nontottering && !params.paths)
+			return;
+		if ((type == KernelType.MMECH || type == KernelType.RWK) && params.solve)
+			return;
+		
+		String mode = params.paths ? " with paths" : params.nontottering ? " with non-tottering walks" : "";
+		if (type == KernelType.MMECH || type == KernelType.RWK)
+			mode = mode.length() > 0 ? mode : " without --solve";
+		System.out.println("Warning: --implicit has no effect for " + type + mode + ", walking the array product graph");
+		params.implicit = false;
+	}
+	
+	// kernels of the spec lines, null for the types not supported there
+	private static Kernel specKernel(KernelType type, Graph[] graphs, KernelParams params)
+	{
+		if (type == KernelType.MMECH || type == KernelType.RWK)
+			return new MarginalMechanismKernel(graphs, params);
+		if (type == KernelType.EMECH || type == KernelType.WK)
+			return new EnumerativeMechanismKernel(graphs, params);
+		if (type == KernelType.SP)
+			return new ShortestPathsKernel(graphs, params);
+		return null;
+	}
+	
+	/*
+	 * Query service, kernel rows of new graphs against the input graphs
+	 * 
+	 * A request line is a mol file followed by a spec as in multi(), i.e.
+	 * 
+	 *   /data/R01234.mol -t MMECH -g -n
+	 * 
+	 * with -n for a normalized row. See QueryService for the protocol.
+	 */
+	private static void serve(final KernelParams common, final Graph[] graphs, boolean molecules, int port) throws IOException
+	{
+		// all cores unless -j is given
+		int threads = common.threads > 1 ? common.threads : Runtime.getRuntime().availableProcessors();
+		
+		QueryService service = new QueryService(graphs, molecules, threads)
+		{
+			protected Kernel kernel(String spec)
+			{
+				spec = spec + " ";
+				
+				// the getters exit on malformed numbers, which must not stop the service
+				String[] tokens = spec.trim().split("\\s+");
+				for (int i = 0; i+1 < tokens.length; i++)
+				{
+					if (tokens[i].equals("-k"))
+						Integer.parseInt(tokens[i+1]);
+					else if (tokens[i].matches("-[lbae]"))
+						Double.parseDouble(tokens[i+1]);
+				}
+				
+				KernelParams params = specParams(spec, common);
+				params.normalize = spec.indexOf("-n ") >= 0;
+				params.threads = 1;
+				params.stream = true; // no rows are allocated
+				
+				KernelType type = specType(spec);
+				if (type == KernelType.WK || type == KernelType.RWK)
+				{
+					params.kw = KernelWeight.Exponential;
+					params.alpha = 1.0;
+				}
+				
+				Kernel k = specKernel(type, graphs, params);
+				if (k == null)
+					throw new IllegalArgumentException("Queries support MMECH, EMECH, WK, RWK and SP only, not " + type);
+				return k;
+			}
+		};
+		
+		if (port > 0)
+			service.serve(port);
+		else
+			service.serve();
+	}
+	
+	// reads the matrix to extend, which must be a full raw one of the same parameters with graph ids
+	private static MatrixIO.Stored readUpdate(String filename, KernelType type, KernelParams params) throws IOException
+	{
+		MatrixIO.Stored old = MatrixIO.read(filename);
+		
+		// the kernel type is only in the file name
+		if (!new File(filename).getName().startsWith("kernel-" + type + "-"))
+			System.out.println("Warning: " + filename + " is not named as a " + type + " kernel, its type can't be checked");
+		
+		KernelParams raw = params.clone();
+		raw.normalize = false;
+		
+		if (old.ids == null)
+			System.out.println("Matrix " + filename + " has no graph ids, write it with --write packed");
+		else if (old.start != 1)
+			System.out.println("Matrix " + filename + " has rows " + old.start + ".." + old.end + ", only full matrices can be extended");
+		else if (!raw.toString().equals(old.params))
+			System.out.println("Matrix " + filename + " was computed with " + old.params + ", not " + raw);
+		else
+			return old;
+		
+		System.exit(0);
+		return null;
+	}
+	
+	/*
+	 * Orders the graphs of the matrix first, in the order of the matrix, followed by
+	 * the new graphs. Returns the row of each graph in the matrix, or -1 if new.
+	 */
+	private static int[] orderGraphs(Graph[] graphs, MatrixIO.Stored old, String filename)
+	{
+		Map<String,Graph> byid = new HashMap<String,Graph>();
+		for (Graph g : graphs)
+			byid.put(Kernel.graphId(g), g);
+		
+		if (byid.size() < graphs.length)
+		{
+			System.out.println("Graph ids of the input are not unique, can't extend " + filename);
+			System.exit(0);
+		}
+		
+		Graph[] ordered = new Graph[graphs.length];
+		int[] oldindex = new int[graphs.length];
+		int n = 0;
+		for (int o = 0; o < old.ids.length; o++)
+		{
+			Graph g = byid.remove(old.ids[o]);
+			if (g == null)
+				continue;
+			
+			oldindex[n] = o;
+			ordered[n++] = g;
+		}
+		
+		if (n < old.ids.length)
+			System.out.println((old.ids.length - n) + " graphs of " + filename + " are not in the input, dropping them");
+		System.out.println("Extending " + n + " graphs of " + filename + " by " + (graphs.length - n) + " new graphs");
+		
+		// new graphs in input order
+		for (Graph g : graphs)
+		{
+			if (!byid.containsKey(Kernel.graphId(g)))
+				continue;
+			
+			oldindex[n] = -1;
+			ordered[n++] = g;
+		}
+		
+		for (int i = 0; i < graphs.length; i++)
+		{
+			graphs[i] = ordered[i];
+			graphs[i].setIndex(i);
+		}
+		
+		return oldindex;
+	}
+	
+	// copies the cells among the graphs of the old matrix, compute() then only does the new rows
+	private static void presetRows(Kernel k, MatrixIO.Stored old, int[] oldindex)
+	{
+		for (int i = 0; i < oldindex.length && oldindex[i] >= 0; i++)
+		{
+			double[] row = new double[i+1];
+			for (int j = 0; j <= i; j++)
+			{
+				int a = oldindex[i], b = oldindex[j];
+				row[j] = b <= a ? old.rows[a][b] : old.rows[b][a];
+			}
+			k.presetRow(i, row);
+		}
+	}
+	
+	private static void write(Kernel k, KernelType type, KernelParams params, boolean normalize, String outputdir, int files, MatrixFormat format)
+	{
 		if (normalize)
 		{
 			System.out.println("Normalizing kernel matrix...");
 			k.normalize();
 		}
 		
-		if (end == files.size() && start == 1)
+		k.reportPrecision();
+		
+		if (format != MatrixFormat.TXT)
+		{
+			System.out.println("Writing " + format + " matrix...");
+			k.writeBinaryToFile(matrixFile(type, params, outputdir, files, format), format);
+		}
+		else if (params.end == files && params.start == 1)
 		{
 			System.out.println("Writing matrix...");
-			k.writeToFile(outputdir + "kernel-" + type + "-" + params + "-full.txt");
+			k.writeToFile(matrixFile(type, params, outputdir, files, format));
 		}
 		else
 		{
 			System.out.println("Writing partial matrix...");
 			
-			k.writePartialToFile(outputdir + "kernel-" + type + "-" + params + "-" + start + "-" + end + ".txt");
+			k.writePartialToFile(matrixFile(type, params, outputdir, files, format));
+		}
+	}
+	
+	/*
+	 * Runs the shards as separate JVMs with the options of this one, except that each
+	 * computes its rows raw, and merges their matrices once all are done. The shards
+	 * write float64 (PACKED) parts, thus the merged matrix is normalized from the full
+	 * values and rounded only once in 'format'.
+	 */
+	private static void runShards(String[] args, int[][] ranges, KernelType type, KernelParams params, boolean normalize, String outputdir, int files, MatrixFormat format) throws IOException
+	{
+		List<String> jvm = new ArrayList<String>();
+		jvm.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		jvm.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		jvm.add("-cp");
+		jvm.add(System.getProperty("java.class.path"));
+		jvm.add("Mechanism");
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--shards") || args[i].equals("--start") || args[i].equals("--end") || args[i].equals("--write"))
+				i++;
+			else if (!args[i].equals("-n") && !args[i].equals("--normalize"))
+				jvm.add(args[i]);
+		}
+		jvm.add("--write");
+		jvm.add("packed");
+		
+		Process[] procs = new Process[ranges.length];
+		for (int s = 0; s < ranges.length; s++)
+		{
+			List<String> cmd = new ArrayList<String>(jvm);
+			cmd.add("--start");
+			cmd.add("" + ranges[s][0]);
+			cmd.add("--end");
+			cmd.add("" + ranges[s][1]);
+			
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(new File(outputdir + "shard-" + (s+1) + ".log"));
+			procs[s] = pb.start();
+			System.out.println("Shard " + (s+1) + " (rows " + ranges[s][0] + ".." + ranges[s][1] + ") started, log in " + outputdir + "shard-" + (s+1) + ".log");
 		}
 		
-		System.out.println("Done");
+		boolean failed = false;
+		for (int s = 0; s < ranges.length; s++)
+		{
+			try
+			{
+				if (procs[s].waitFor() != 0)
+				{
+					System.out.println("Shard " + (s+1) + " failed, see " + outputdir + "shard-" + (s+1) + ".log");
+					failed = true;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				failed = true;
+			}
+		}
+		if (failed)
+			System.exit(0);
+		
+		List<String> parts = new ArrayList<String>();
+		for (int[] r : ranges)
+		{
+			KernelParams p = params.clone();
+			p.start = r[0];
+			p.end = r[1];
+			p.normalize = false;
+			parts.add(matrixFile(type, p, outputdir, files, MatrixFormat.PACKED));
+		}
+		
+		KernelParams full = params.clone();
+		full.start = 1;
+		full.end = files;
+		writeMerged(parts, files, normalize, format, matrixFile(type, full, outputdir, files, format));
+	}
+	
+	/*
+	 * Merges partial matrices, the name of the full one comes from the first part. With
+	 * the plan of the shards among the files, the parts must cover all of its rows.
+	 */
+	private static void mergeParts(List<String> files, boolean normalize, String outputdir, MatrixFormat format) throws IOException
+	{
+		List<String> parts = new ArrayList<String>();
+		int end = 0;
+		for (String f : files)
+		{
+			if (!f.endsWith(".plan"))
+				parts.add(f);
+			else
+				for (int[] r : ShardPlanner.read(f))
+					end = Math.max(end, r[1]);
+		}
+		
+		if (parts.isEmpty())
+		{
+			System.out.println("No partial matrices to merge");
+			System.exit(0);
+		}
+		if (end == 0)
+			System.out.println("No plan given, the rows after the last part can't be checked");
+		
+		String name = new File(parts.get(0)).getName().replaceAll("\\.[a-z0-9]+$", "");
+		if (name.matches(".*-[0-9]+-[0-9]+$"))
+			name = name.replaceAll("-[0-9]+-[0-9]+$", "-full");
+		else
+			name = name + "-merged";
+		if (normalize)
+			name = name.replace("-raw-", "-normalized-");
+		
+		writeMerged(parts, end, normalize, format, outputdir + name + format.extension());
+	}
+	
+	// 'end' <= 0 if not known
+	private static void writeMerged(List<String> parts, int end, boolean normalize, MatrixFormat format, String filename) throws IOException
+	{
+		List<MatrixIO.Stored> stored = new ArrayList<MatrixIO.Stored>();
+		for (String f : parts)
+		{
+			MatrixIO.Stored m = MatrixIO.read(f);
+			System.out.println("Rows " + m.start + ".." + m.end + " from " + f);
+			stored.add(m);
+		}
+		
+		MatrixIO.Stored merged = null;
+		try
+		{
+			merged = MatrixIO.merge(stored, end);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Can't merge: " + e.getMessage());
+			System.exit(0);
+		}
+		if (normalize && merged.params != null)
+			merged.params = merged.params.replace("-raw-", "-normalized-");
+		
+		// text parts have no ids, graphs are then named by their numbers
+		if (merged.ids == null)
+		{
+			merged.ids = new String[merged.end];
+			for (int i = 0; i < merged.end; i++)
+				merged.ids[i] = "" + (i+1);
+		}
+		
+		Triangle t = Triangle.wrap(merged.rows, merged.start, merged.end);
+		if (normalize)
+		{
+			System.out.println("Normalizing kernel matrix...");
+			t.normalize();
+		}
+		
+		if (format != MatrixFormat.TXT)
+		{
+			MatrixIO.write(format, filename, t, merged.params, merged.ids);
+			System.out.println("Kernel (" + merged.start + ".." + merged.end + ") written to " + format + " file " + filename);
+		}
+		else
+		{
+			MatrixIO.writeText(filename, t);
+			System.out.println("Kernel written to file " + filename);
+		}
+	}
+	
+	private static String matrixFile(KernelType type, KernelParams params, String outputdir, int files, MatrixFormat format)
+	{
+		if (params.end == files && params.start == 1)
+			return outputdir + "kernel-" + type + "-" + params + "-full" + format.extension();
+		
+		return outputdir + "kernel-" + type + "-" + params + "-" + params.start + "-" + params.end + format.extension();
+	}
+	
+	/*
+	 * Multi-kernel mode, each line of 'specfile' is a kernel with its own options:
+	 * 
+	 *   -t MMECH -g -r
+	 *   -t EMECH -p -f LOGISTIC -b 1.5
+	 *   -t WK -k 10
+	 * 
+	 * Options not given in a spec come from the command line, and the graphs, the
+	 * computed rows, normalization, threads and output dir are common to all kernels.
+	 */
+	private static void multi(String specfile, KernelParams common, Graph[] graphs, boolean normalize, String outputdir, int files, MatrixFormat format) throws IOException
+	{
+		List<String> specs = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(specfile));
+		String line;
+		while ((line = in.readLine()) != null)
+			if (line.trim().length() > 0 && !line.trim().startsWith("#"))
+				specs.add(line.trim() + " ");
+		in.close();
+		
+		KernelType[] types = new KernelType[specs.size()];
+		SequenceKernel[] kernels = new SequenceKernel[specs.size()];
+		for (int i = 0; i < specs.size(); i++)
+		{
+			String spec = specs.get(i);
+			KernelParams params = specParams(spec, common);
+			
+			types[i] = specType(spec);
+			if (types[i] == KernelType.WK || types[i] == KernelType.RWK)
+			{
+				params.kw = KernelWeight.Exponential;
+				params.alpha = 1.0;
+			}
+			
+			if (types[i] == KernelType.MMECH || types[i] == KernelType.RWK || types[i] == KernelType.EMECH || types[i] == KernelType.WK)
+				kernels[i] = (SequenceKernel)specKernel(types[i], graphs, params);
+			else
+			{
+				System.out.println("Multi-kernel mode supports MMECH, EMECH, WK and RWK only, not " + types[i]);
+				System.exit(0);
+			}
+			
+			System.out.println("Kernel " + (i+1) + ": " + types[i] + " " + params);
+		}
+		
+		MultiKernel k = new MultiKernel(graphs, common, kernels);
+		k.compute();
+		
+		for (int i = 0; i < kernels.length; i++)
+			write(kernels[i], types[i], kernels[i].getParams(), normalize, outputdir, files, format);
+	}
+	
+	/*
+	 * One configuration of the batch sweep over all parameter values, the column 'config'
+	 * of the results. Kernels are computed on their own copies of the parameters, thus
+	 * configurations can run in parallel.
+	 */
+	private static class Sweep implements Runnable
+	{
+		// {reduced,walks,nontot,paths} quintuples
+		private static boolean[][] fields = {{false,true,false,false},
+		                                     {false,false,true,false},
+		                                     {false,false,false,true},
+		                                     {true,true,false,false},
+		                                     {true,false,true,false},
+		                                     {true,false,false,true}};
+		
+		private int config;
+		private KernelParams params;
+		private Graph[] graphs;
+		private List<Double> values;
+		private ProductGraphCache pgs;
+		private double[][] results;
+		
+		public Sweep(int config, KernelParams params, Graph[] graphs, List<Double> values, ProductGraphCache pgs, double[][] results)
+		{
+			this.config = config;
+			this.params = params.clone();
+			this.graphs = graphs;
+			this.values = values;
+			this.pgs = pgs;
+			this.results = results;
+		}
+		
+		public static void configure(KernelParams params, int config)
+		{
+			params.maxlen = 15;
+			params.lambda = 0.9;
+			params.reduced = fields[config%6][0];
+			params.walks = fields[config%6][1];
+			params.nontottering = fields[config%6][2];
+			params.paths = fields[config%6][3];
+			
+			if (config/6 == 0 || config/6 == 3)
+				params.kw = KernelWeight.Exponential;
+			if (config/6 == 1 || config/6 == 4)
+				params.kw = KernelWeight.Logistic;
+			if (config/6 == 2 || config/6 == 5)
+				params.kw = KernelWeight.Diffusion;
+		}
+		
+		public void run()
+		{
+			configure(params, config);
+			params.start = 1;
+			params.end = graphs.length;
+			params.threads = 1;
+			
+			// each graph is decomposed once for the whole beta sweep
+			DiffusionCache diffusions = null;
+			if (params.kw == KernelWeight.Diffusion)
+				diffusions = new DiffusionCache(0.0, params.diffcache, true);
+			
+			SequenceKernel k = null;
+			for (int j = 0; j < values.size(); j++)
+			{
+				// set both, only use either one
+				params.beta = values.get(j);
+				params.alpha = values.get(j);
+				
+				if (config/6 < 3)
+					k = new MarginalMechanismKernel(graphs, params);
+				else
+					k = new EnumerativeMechanismKernel(graphs, params);
+				
+				k.setProductGraphs(pgs);
+				if (diffusions != null)
+				{
+					diffusions.setBeta(Math.abs(params.beta));
+					k.setDiffusions(diffusions);
+				}
+				
+				k.compute();
+				k.normalize();
+				
+				results[j][config] = k.getValue(0,1);
+			}
+			System.out.println(config + k.getClass().toString());
+		}
 	}
 	
 	private static void batch(KernelParams params, Graph[] graphs, List<String> files)
@@ -414,14 +1219,6 @@ public class Mechanism
 		
 		int zeroindex;
 		
-		// {reduced,walks,nontot,paths} quintuples
-		boolean[][] fields = {{false,true,false,false},
-	                          {false,false,true,false},
-	                          {false,false,false,true},
-	                          {true,true,false,false},
-	                          {true,false,true,false},
-	                          {true,false,false,true}};
-		
 		// generate values
 		List<Double> values = new ArrayList<Double>();
 		values.add(-1000.0);
@@ -446,61 +1243,35 @@ public class Mechanism
 		
 		double[][] results = new double[values.size()][cc+19];
 		
-		int i = 0;
-		for (i = 0; i < cc; i++)
+		// the sweep kernels only need the cells of the first two graphs, and the product 
+		// graphs of these pairs are built once for all configurations and values
+		Graph[] pair = {graphs[0], graphs[1]};
+		ProductGraphCache pgs = new ProductGraphCache();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, params.threads));
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		for (int c = 0; c < cc; c++)
+			tasks.add(pool.submit(new Sweep(c, params, pair, values, pgs, results)));
+		
+		try
 		{
-			params.maxlen = 15;
-			params.lambda = 0.9;
-			params.reduced = fields[i%6][0];
-			params.walks = fields[i%6][1];
-			params.nontottering = fields[i%6][2];
-			params.paths = fields[i%6][3];
-			
-			for (int j = 0; j < values.size(); j++)
-			{
-				// set both, only use either one
-				params.beta = values.get(j);
-				params.alpha = values.get(j);
-				
-				if (i/6 == 0)
-				{
-					params.kw = KernelWeight.Exponential;
-					k = new MarginalMechanismKernel(graphs, params);
-				}
-				if (i/6 == 1)
-				{
-					params.kw = KernelWeight.Logistic;
-					k = new MarginalMechanismKernel(graphs, params);
-				}
-				if (i/6 == 2)
-				{
-					params.kw = KernelWeight.Diffusion;
-					k = new MarginalMechanismKernel(graphs, params);
-				}
-				if (i/6 == 3)
-				{
-					params.kw = KernelWeight.Exponential;
-					k = new EnumerativeMechanismKernel(graphs, params);
-				}
-				if (i/6 == 4)
-				{
-					params.kw = KernelWeight.Logistic;
-					k = new EnumerativeMechanismKernel(graphs, params);
-				}
-				if (i/6 == 5)
-				{
-					params.kw = KernelWeight.Diffusion;
-					k = new EnumerativeMechanismKernel(graphs, params);
-				}
-				
-				k.compute();
-				k.normalize();
-
-				results[j][i] = k.getValue(0,1);
-			}
-			System.out.println(i + k.getClass().toString());
+			for (Future<?> f : tasks)
+				f.get();
 		}
-
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+		pool.shutdown();
+		
+		System.out.println(pgs.size() + " product graphs built for " + cc + " configurations");
+		
+		// the remaining kernels continue from the settings of the last configuration
+		Sweep.configure(params, cc-1);
+		params.beta = values.get(values.size()-1);
+		params.alpha = values.get(values.size()-1);
+		
+		int i = cc;
 		
 		params.maxlen = 10;
 		
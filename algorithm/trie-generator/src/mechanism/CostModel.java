@@ -0,0 +1,53 @@
+package mechanism;
+
+import java.util.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Predicted cost of the cells of a kernel matrix, before any product graph is built
+ *
+ * Nodes of the product graph are the pairs of nodes with the same label, thus the
+ * product graph of (i,j) has sum_l n_i(l)*n_j(l) nodes over the labels 'l' of the
+ * formulas of the graphs. The cost of a cell is that count, plus one for the pairs
+ * without common labels.
+ */
+public class CostModel
+{
+	private int[][] counts;
+
+	public CostModel(Graph[] graphs)
+	{
+		// formulas as count vectors over all labels
+		Map<String,Integer> labels = new HashMap<String,Integer>();
+		for (Graph g : graphs)
+			if (g != null && g.getFormula() != null)
+				for (String l : g.getFormula().keySet())
+					if (!labels.containsKey(l))
+						labels.put(l, labels.size());
+
+		counts = new int[graphs.length][labels.size()];
+		for (int i = 0; i < graphs.length; i++)
+			if (graphs[i] != null && graphs[i].getFormula() != null)
+				for (Map.Entry<String,Integer> e : graphs[i].getFormula().entrySet())
+					counts[i][labels.get(e.getKey())] = e.getValue();
+	}
+
+	// cost of cell (i,j), in graph indices
+	public long cost(int i, int j)
+	{
+		long c = 1;
+		for (int l = 0; l < counts[i].length; l++)
+			c += (long)counts[i][l] * counts[j][l];
+		return c;
+	}
+
+	// cost of the cells 0..i of row 'i'
+	public long rowCost(int i)
+	{
+		long c = 0;
+		for (int j = 0; j <= i; j++)
+			c += cost(i, j);
+		return c;
+	}
+}
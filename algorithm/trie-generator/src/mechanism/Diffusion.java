@@ -10,6 +10,13 @@ public class Diffusion
 	private double[][] H;
 	private double[][] E;
 	private double beta;
+	
+	// spectral mode: H = V diag(spectrum) V^T, thus e^(beta*H) = V diag(e^(beta*spectrum)) V^T
+	// 'active' holds the eigenvectors with non-negligible weight e^(beta*spectrum) for this beta
+	private double[][] V;
+	private double[] spectrum;
+	private double[] weights;
+	private int[] active;
 
 	public Diffusion(Graph g, double beta)
 	{
@@ -19,6 +26,45 @@ public class Diffusion
 		constructH();
 		expm(); // compute expm
 	}
+	
+	// spectral mode, decomposes H once, use atBeta() to get the diffusion for any beta
+	public Diffusion(Graph g)
+	{
+		this.g = g;
+		this.beta = 1.0;
+		
+		constructH();
+		eig();
+		H = null;
+	}
+	
+	private Diffusion(Diffusion base, double beta)
+	{
+		this.g = base.g;
+		this.n = base.n;
+		this.beta = beta;
+		this.V = base.V;
+		this.spectrum = base.spectrum;
+		
+		// H is negative semidefinite, the largest weight is e^(beta*max(spectrum)) 
+		weights = new double[n];
+		double max = 0.0;
+		for (int k = 0; k < n; k++)
+		{
+			weights[k] = Math.exp(beta * spectrum[k]);
+			max = Math.max(max, weights[k]);
+		}
+		
+		int rank = 0;
+		for (int k = 0; k < n; k++)
+			if (weights[k] > 1e-16 * max)
+				rank++;
+		active = new int[rank];
+		rank = 0;
+		for (int k = 0; k < n; k++)
+			if (weights[k] > 1e-16 * max)
+				active[rank++] = k;
+	}
 
 	// computes the matrix: beta*H = beta*(A - D)
 	// uses this.g to compute this
@@ -46,9 +92,49 @@ public class Diffusion
 		E = expm_matlab();
 	}
 
+	// decompose the symmetric H (computed with beta = 1)
+	private void eig()
+	{
+		Matrix A = new Matrix(n,n);
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				A.set(i,j,H[i][j]);
+		
+		EigenvalueDecomposition ed = A.eig();
+		
+		spectrum = ed.getRealEigenvalues();
+		V = ed.getV().getArray();
+	}
+	
+	// diffusion with another beta, shares the decomposition with this one
+	public Diffusion atBeta(double beta)
+	{
+		if (V == null)
+			return new Diffusion(g, beta);
+		
+		return new Diffusion(this, beta);
+	}
+	
+	public boolean isSpectral()
+	{
+		return V != null;
+	}
+	
+	public double getBeta()
+	{
+		return beta;
+	}
+
 	public double get(int i, int j)
 	{
-		return E[i][j];
+		if (E != null)
+			return E[i][j];
+		
+		// spectral mode, O(rank)
+		double val = 0.0;
+		for (int k : active)
+			val += V[i][k] * weights[k] * V[j][k];
+		return val;
 	}
 
 	private double[][] matrixmult(double[][] A, double[][] B)
@@ -0,0 +1,174 @@
+package mechanism;
+
+import java.util.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Diffusion matrices of graphs, each computed once and shared by all kernel pairs
+ *
+ * Graphs are looked up by identity (Graph.equals() is an isomorphism test, and
+ * isomorphic graphs can have different node numbering). With a memory bound the
+ * least recently used matrices are evicted, and recomputed when needed again.
+ *
+ * In spectral mode the cache keeps the eigendecompositions of the graphs instead
+ * of the matrices, and the diffusion of any beta is served from them. One cache
+ * can then be reused over a whole beta sweep with setBeta().
+ *
+ * Safe to use from several worker threads, a matrix is computed outside of the
+ * lock, thus two threads may occasionally compute the same matrix.
+ */
+public class DiffusionCache
+{
+	private double beta;
+	private long maxsize; // in doubles, <= 0 is unbounded
+	private long size;
+	private boolean spectral;
+	private LinkedHashMap<GraphKey,Diffusion> cache;
+	private Map<GraphKey,Diffusion> views; // spectral mode, diffusions at the current beta
+	private int computed;
+
+	public DiffusionCache(double beta)
+	{
+		this(beta, 0);
+	}
+
+	// 'megabytes' <= 0 keeps all matrices
+	public DiffusionCache(double beta, int megabytes)
+	{
+		this(beta, megabytes, false);
+	}
+
+	public DiffusionCache(double beta, int megabytes, boolean spectral)
+	{
+		this.beta = beta;
+		this.maxsize = (long)megabytes * 1024 * 1024 / 8;
+		this.spectral = spectral;
+
+		cache = new LinkedHashMap<GraphKey,Diffusion>(16, 0.75f, true); // access order
+		views = new HashMap<GraphKey,Diffusion>();
+	}
+
+	public Diffusion get(Graph g)
+	{
+		GraphKey key = new GraphKey(g);
+		Diffusion d;
+
+		synchronized (this)
+		{
+			d = cache.get(key);
+			if (d != null && !spectral)
+				return d;
+			if (d != null && views.containsKey(key))
+				return views.get(key);
+		}
+
+		if (d == null)
+		{
+			d = spectral ? new Diffusion(g) : new Diffusion(g, beta);
+			put(key, d);
+		}
+
+		if (!spectral)
+			return d;
+
+		Diffusion view = d.atBeta(beta);
+		synchronized (this)
+		{
+			if (cache.containsKey(key))
+				views.put(key, view);
+		}
+		return view;
+	}
+
+	public double getBeta()
+	{
+		return beta;
+	}
+
+	// changes the diffusion parameter, keeps the decompositions in spectral mode
+	public synchronized void setBeta(double beta)
+	{
+		if (beta == this.beta)
+			return;
+
+		this.beta = beta;
+		views.clear();
+		if (!spectral)
+		{
+			cache.clear();
+			size = 0;
+		}
+	}
+
+	public boolean isSpectral()
+	{
+		return spectral;
+	}
+
+	// drops the matrix of 'g', e.g. of a graph used only once
+	public synchronized void remove(Graph g)
+	{
+		GraphKey key = new GraphKey(g);
+		if (cache.remove(key) != null)
+			size -= weight(g);
+		views.remove(key);
+	}
+
+	public synchronized boolean contains(Graph g)
+	{
+		return cache.containsKey(new GraphKey(g));
+	}
+
+	// number of computed matrices, including recomputations after eviction
+	public synchronized int getComputed()
+	{
+		return computed;
+	}
+
+	private synchronized void put(GraphKey key, Diffusion d)
+	{
+		computed++;
+
+		if (cache.containsKey(key))
+			return;
+
+		cache.put(key, d);
+		size += weight(key.g);
+
+		// evict least recently used, the newest one is always kept
+		Iterator<Map.Entry<GraphKey,Diffusion>> it = cache.entrySet().iterator();
+		while (maxsize > 0 && size > maxsize && cache.size() > 1)
+		{
+			Map.Entry<GraphKey,Diffusion> e = it.next();
+			size -= weight(e.getKey().g);
+			views.remove(e.getKey());
+			it.remove();
+		}
+	}
+
+	private long weight(Graph g)
+	{
+		return (long)g.getSize() * g.getSize();
+	}
+
+	private static class GraphKey
+	{
+		private Graph g;
+
+		public GraphKey(Graph g)
+		{
+			this.g = g;
+		}
+
+		public int hashCode()
+		{
+			return System.identityHashCode(g);
+		}
+
+		public boolean equals(Object other)
+		{
+			return other instanceof GraphKey && ((GraphKey)other).g == g;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package mechanism;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Lower triangle packed row after row into a single off-heap region
+ *
+ * Cell [i,j] is at offset(i) + j, offset(i) = i(i+1)/2 - (start-1)start/2. A buffer
+ * can't hold more than 2^31 bytes, thus the region is split into chunks of
+ * 2^CHUNK_BITS doubles. Triangles larger than 'mapsize' megabytes are mapped from a
+ * temporary file instead, and may then be larger than the memory (paged by the OS).
+ *
+ * get() and set() use absolute positions, thus worker threads can write their
+ * cells concurrently.
+ */
+public class DirectTriangle extends Triangle
+{
+	public static int CHUNK_BITS = 27; // 1 GB chunks
+	
+	private DoubleBuffer[] chunks;
+	private long base;
+	private long size;
+	private File file;
+	
+	// 'mapsize' <= 0 never maps
+	public DirectTriangle(int start, int end, int mapsize) throws IOException
+	{
+		this.start = start;
+		this.end = end;
+		
+		base = offset(start-1);
+		size = offset(end);
+		
+		int n = (int)((size + (1L << CHUNK_BITS) - 1) >> CHUNK_BITS);
+		chunks = new DoubleBuffer[n];
+		
+		if (mapsize > 0 && size*8 > (long)mapsize * 1024 * 1024)
+		{
+			file = File.createTempFile("kernel", ".triangle");
+			file.deleteOnExit();
+			
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(size*8);
+			FileChannel ch = raf.getChannel();
+			for (int c = 0; c < n; c++)
+			{
+				long first = (long)c << CHUNK_BITS;
+				long len = Math.min(1L << CHUNK_BITS, size - first);
+				chunks[c] = ch.map(FileChannel.MapMode.READ_WRITE, first*8, len*8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+			ch.close(); // mappings stay valid
+			raf.close();
+		}
+		else
+		{
+			for (int c = 0; c < n; c++)
+			{
+				long first = (long)c << CHUNK_BITS;
+				long len = Math.min(1L << CHUNK_BITS, size - first);
+				chunks[c] = ByteBuffer.allocateDirect((int)(len*8)).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+			}
+		}
+	}
+	
+	// offset of row 'i' from the start of row 0
+	private long offset(int i)
+	{
+		return (long)i * (i+1) / 2 - base;
+	}
+	
+	public double get(int i, int j)
+	{
+		long x = offset(i) + j;
+		return chunks[(int)(x >> CHUNK_BITS)].get((int)(x & ((1L << CHUNK_BITS) - 1)));
+	}
+	
+	public void set(int i, int j, double value)
+	{
+		long x = offset(i) + j;
+		chunks[(int)(x >> CHUNK_BITS)].put((int)(x & ((1L << CHUNK_BITS) - 1)), value);
+	}
+	
+	public boolean isMapped()
+	{
+		return file != null;
+	}
+	
+	// number of cells
+	public long size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,31 @@
+package mechanism;
+
+// lower triangle of floats
+public class FloatTriangle extends ReducedTriangle
+{
+	private float[][] rows;
+	
+	public FloatTriangle(int start, int end)
+	{
+		super(start, end);
+		
+		rows = new float[end-start+1][];
+		for (int i = start-1; i < end; i++)
+			rows[i-start+1] = new float[i];
+	}
+	
+	protected double load(int i, int j)
+	{
+		return rows[i-start+1][j];
+	}
+	
+	protected void store(int i, int j, double value)
+	{
+		rows[i-start+1][j] = (float)value;
+	}
+	
+	public Precision getPrecision()
+	{
+		return Precision.FLOAT32;
+	}
+}
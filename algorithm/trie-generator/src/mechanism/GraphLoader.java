@@ -0,0 +1,125 @@
+package mechanism;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Reads the graphs of the input files and precomputes their core distances
+ *
+ * Files are read and parsed by a pool of worker threads, and the core distances
+ * are computed on the same pool later on. Graphs are independent of each other,
+ * thus the result is the same as of the serial loops, in the order of the files.
+ * Reading is mostly waiting for the disk (or network), thus the pool has at least
+ * as many threads as there are processors. Graphs of a Corpus are built from its
+ * mapping on the same pool, and have their core distances already.
+ */
+public class GraphLoader
+{
+	private int threads;
+
+	public GraphLoader(int threads)
+	{
+		this.threads = Math.max(threads, Runtime.getRuntime().availableProcessors());
+	}
+
+	// graphs of the first 'n' files, with indices 0..n-1
+	public Graph[] read(final List<String> files, int n, final KernelType type, final boolean molecules)
+	{
+		final Graph[] graphs = new Graph[n];
+		run(n, new Task()
+		{
+			public void run(int i)
+			{
+				if (type == KernelType.RGK)
+					graphs[i] = new RGKGraph(files.get(i));
+				else if (!molecules)
+					graphs[i] = new ReactionGraph(files.get(i));
+				else
+					graphs[i] = new MoleculeGraph(files.get(i));
+
+				graphs[i].setIndex(i);
+			}
+		});
+		return graphs;
+	}
+
+	// graphs 0..n-1 of 'corpus'
+	public Graph[] read(final Corpus corpus, int n)
+	{
+		final Graph[] graphs = new Graph[n];
+		run(n, new Task()
+		{
+			public void run(int i)
+			{
+				graphs[i] = corpus.graph(i);
+			}
+		});
+		return graphs;
+	}
+
+	public void computeDistances(final Graph[] graphs)
+	{
+		run(graphs.length, new Task()
+		{
+			public void run(int i)
+			{
+				graphs[i].computeDistances();
+			}
+		});
+	}
+
+	private interface Task
+	{
+		void run(int i);
+	}
+
+	// runs task(i) for i=0..n-1, and throws the first failure after all are done
+	private void run(int n, final Task task)
+	{
+		if (threads <= 1 || n <= 1)
+		{
+			for (int i = 0; i < n; i++)
+				task.run(i);
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, n));
+		List<Future<?>> done = new ArrayList<Future<?>>(n);
+		for (int i = 0; i < n; i++)
+		{
+			final int x = i;
+			done.add(pool.submit(new Runnable()
+			{
+				public void run()
+				{
+					task.run(x);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		RuntimeException failure = null;
+		for (Future<?> f : done)
+		{
+			try
+			{
+				f.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (failure == null)
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+}
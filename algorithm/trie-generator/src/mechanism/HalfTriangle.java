@@ -0,0 +1,87 @@
+package mechanism;
+
+/*
+ * Lower triangle of IEEE 754 half precision values (1 sign, 5 exponent, 10 mantissa bits)
+ *
+ * Values are rounded to the nearest half, ties to even. The largest finite half is
+ * 65504, larger values are stored as infinity, thus raw kernels of long walks may
+ * not fit.
+ */
+public class HalfTriangle extends ReducedTriangle
+{
+	private short[][] rows;
+	
+	public HalfTriangle(int start, int end)
+	{
+		super(start, end);
+		
+		rows = new short[end-start+1][];
+		for (int i = start-1; i < end; i++)
+			rows[i-start+1] = new short[i];
+	}
+	
+	protected double load(int i, int j)
+	{
+		return toDouble(rows[i-start+1][j]);
+	}
+	
+	protected void store(int i, int j, double value)
+	{
+		rows[i-start+1][j] = toHalf(value);
+	}
+	
+	public Precision getPrecision()
+	{
+		return Precision.FLOAT16;
+	}
+	
+	public static short toHalf(double value)
+	{
+		float f = (float)value;
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mant = bits & 0x7fffff;
+		
+		if (Float.isNaN(f))
+			return (short)(sign | 0x7e00);
+		if (exp >= 0x1f)
+			return (short)(sign | 0x7c00);
+		
+		// subnormal, m * 2^-24
+		if (exp <= 0)
+		{
+			if (exp < -10)
+				return (short)sign;
+			
+			int m = mant | 0x800000;
+			int shift = 14 - exp;
+			int h = m >> shift;
+			int rem = m & ((1 << shift) - 1);
+			int half = 1 << (shift - 1);
+			if (rem > half || (rem == half && (h & 1) != 0))
+				h++;
+			return (short)(sign | h);
+		}
+		
+		// normal, a carry of the rounding moves into the exponent (up to infinity)
+		int h = (exp << 10) | (mant >> 13);
+		int rem = mant & 0x1fff;
+		if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0))
+			h++;
+		return (short)(sign | h);
+	}
+	
+	public static double toDouble(short half)
+	{
+		double sign = (half & 0x8000) != 0 ? -1.0 : 1.0;
+		int exp = (half >>> 10) & 0x1f;
+		int mant = half & 0x3ff;
+		
+		if (exp == 0)
+			return sign * Math.scalb((double)mant, -24);
+		if (exp == 0x1f)
+			return mant == 0 ? sign * Double.POSITIVE_INFINITY : Double.NaN;
+		return sign * Math.scalb((double)(mant | 0x400), exp - 25);
+	}
+}
@@ -8,13 +8,20 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mechanism.graphs.*;
 
 
 /*
  * Kernels are symmetric, thus only lower triangle of the matrix is necessary to compute and store
- * Also, for memory-efficiency, floats are used instead of doubles
+ * Also, for memory-efficiency, cells can be stored as floats, halfs or 8 bits (see Precision)
  */
 
 
@@ -22,19 +29,46 @@ public abstract class Kernel
 {
 	public static String MOL_FOLDER = "/group/home/icomic/data/kegg/ligand/LATEST/mol/";
 	
+	// side length of the square tiles the triangle is cut into in parallel mode
+	public static int TILE_SIZE = 16;
+	
 	protected double matrix[][] = null;
+	protected Triangle storage = null; // off-heap cells instead of 'matrix', if used
+	protected double levels[][][] = null; // per walk length values of the cells, if recorded
 	protected Graph[] graphs;
 	protected int count;
 	protected KernelParams params;
 	protected int ec;
 	
-	protected int counted = 0;
-	protected long totalpgtime = 0;
-	protected long totalwalktime = 0;
-	protected long pgtime = 0;
-	protected long walktime = 0;
+	// statistics, updated concurrently by the worker threads
+	protected AtomicInteger counted = new AtomicInteger(0);
+	protected AtomicLong totalpgtime = new AtomicLong(0);
+	protected AtomicLong totalwalktime = new AtomicLong(0);
+	protected AtomicLong pgtime = new AtomicLong(0);
+	protected AtomicLong walktime = new AtomicLong(0);
+	
+	protected DiffusionCache diffs = null;
+	
+	// journal of the completed rows, and the rows known before compute(), read
+	// back from the journal or preset from an earlier matrix
+	protected RowJournal journal = null;
+	protected BitSet done = new BitSet();
+	
+	// streaming output, rows are allocated when started and dropped once written
+	protected String streamfile = null;
+	protected MatrixFormat streamformat = MatrixFormat.TXT;
+	protected RowWriter stream = null;
+	protected double[] diagonal;
+	
+	// rows kept in double next to reduced precision storage, for the error of the run report
+	public static int SAMPLE_ROWS = 32;
+	protected double[][] samples = null;
+	protected double[] rawdiag = null; // diagonal before normalize(), null if not normalized
 	
-	protected Map<Graph, Diffusion> diffs = null;;
+	// key of the current node weights, see weightKey()
+	private volatile String weightkey = null;
+	private KernelWeight keykw;
+	private double keyalpha, keybeta;
 	
 		
 	public Kernel(Graph[] graphs, KernelParams params)
@@ -45,10 +79,35 @@ public abstract class Kernel
 		
 		ec = params.end - params.start + 1;
 		
-		// jagged (lower left) triangle matrix
+		// jagged (lower left) triangle matrix, rows on demand when streaming
 		matrix = new double[ec][];
-		for (int i = 0; i < ec; i++)
-			matrix[i] = new double[params.start + i];
+		if (params.precision != Precision.FLOAT64 && !params.stream)
+		{
+			if (params.direct)
+				System.out.println("Off-heap storage is float64 only, storing " + params.precision + " on the heap");
+			storage = ReducedTriangle.create(params.precision, params.start, params.end);
+			
+			samples = new double[ec][];
+			for (int r = 0; r < ec; r += Math.max(1, ec / SAMPLE_ROWS))
+				samples[r] = new double[params.start + r];
+		}
+		else if (params.direct && !params.stream)
+		{
+			try
+			{
+				storage = new DirectTriangle(params.start, params.end, params.mapsize);
+			}
+			catch (IOException e)
+			{
+				System.out.println(e.getMessage());
+				System.exit(0);
+			}
+		}
+		else if (!params.stream)
+			for (int i = 0; i < ec; i++)
+				matrix[i] = new double[params.start + i];
+		
+		diagonal = new double[params.end];
 	}
 	
 	public void compute()
@@ -102,8 +161,23 @@ public abstract class Kernel
 		
 		
 		
+		openJournal();
+		openStream();
+		
+		if (params.threads > 1)
+		{
+			computeTiled();
+			closeJournal();
+			closeStream();
+			return;
+		}
+		
+		// progress by the predicted cost of the cells, not their number
+		CostModel costs = new CostModel(graphs);
 		long count = 0;
-		long tocompute = ((params.end-params.start+1)*params.end)/2;
+		long tocompute = 0;
+		for (int i = params.start-1; i < params.end; i++)
+			tocompute += costs.rowCost(i);
 		
 		long starttime = System.currentTimeMillis();
 		
@@ -114,62 +188,544 @@ public abstract class Kernel
 //			pgtime = 0;
 //			walktime = 0;
 			
+			if (done.get(i))
+			{
+				count += costs.rowCost(i);
+				continue;
+			}
+			
 			for (int j = 0; j <= i; j++)
 			{
-				matrix[i-params.start+1][j] = compute(graphs[i], graphs[j]);
-				
-				// nan's not allowed at this stage, infinities are ok
-				// after normalization nans are ok
-				assert !Double.isNaN(matrix[i-params.start+1][j]);
-				
-				if (Double.isNaN(matrix[i-params.start+1][j]))
-					System.out.println("Error: nan at " + i + " " + j);
-				
-				count++;
+				computeCell(i, j);
+				count += costs.cost(i, j);
 			}
 			
+			finishRow(i);
+			journalRow(i);
+			streamRow(i);
+			
 //			totalpgtime += pgtime;
 //			totalwalktime += walktime;
 			
-			if (graphs[i] instanceof ReactionGraph)
+			printRow(i, getUpdateStr(starttime, 1.0*count/tocompute));
+		}
+		
+		closeJournal();
+		closeStream();
+	}
+	
+	// loads the rows of an existing journal, if journaling is on
+	protected void openJournal()
+	{
+		if (params.journal == null)
+			return;
+		
+		if (levels != null || params.stream)
+		{
+			System.out.println("Per-length values and streamed rows are not journaled, not using journal " + params.journal);
+			return;
+		}
+		
+		// rows are journaled as stored, thus a journal of a reduced precision can't
+		// resume a run at another one
+		journal = new RowJournal(params.journal, params.toString() + " " + params.precision);
+		try
+		{
+			BitSet journaled = journal.open(triangle());
+			if (journaled.cardinality() > 0)
+				System.out.println("Resuming, " + journaled.cardinality() + " rows read from journal " + params.journal);
+			done.or(journaled);
+			
+			// journaled rows are known only at the stored precision
+			if (samples != null)
+				for (int i = journaled.nextSetBit(0); i >= 0; i = journaled.nextSetBit(i+1))
+					samples[i-params.start+1] = null;
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+	}
+	
+	protected void journalRow(int i)
+	{
+		if (journal == null)
+			return;
+		
+		try
+		{
+			journal.append(i, storage != null ? storage.getRow(i) : matrix[i-params.start+1]);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error: row " + i + " not journaled: " + e.getMessage());
+		}
+	}
+	
+	// writes the rows into 'streamfile' as they are done instead of keeping them
+	public void setStreamFile(String filename)
+	{
+		setStreamFile(filename, MatrixFormat.TXT);
+	}
+	
+	// same in 'format', TXT or one of the packed formats
+	public void setStreamFile(String filename, MatrixFormat format)
+	{
+		streamfile = filename;
+		streamformat = format;
+	}
+	
+	protected void openStream()
+	{
+		if (!params.stream)
+			return;
+		
+		try
+		{
+			if (streamformat == MatrixFormat.TXT)
+				stream = new RowWriter(streamfile, params.start, diagonal, params.normalize);
+			else
+				stream = new RowWriter(streamfile, streamformat, params.start, params.end, diagonal, params.normalize, getParamString(), graphIds());
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+	}
+	
+	// hands the finished row 'i' over to the stream, the row is not kept
+	protected void streamRow(int i)
+	{
+		if (stream == null)
+			return;
+		
+		try
+		{
+			stream.write(i, matrix[i-params.start+1]);
+			matrix[i-params.start+1] = null;
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error: row " + i + " not written: " + e.getMessage());
+		}
+	}
+	
+	protected void closeStream()
+	{
+		if (stream == null)
+			return;
+		
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+		}
+		stream = null;
+		
+		System.out.println("Kernel streamed to file " + streamfile);
+	}
+	
+	// row 'i' (in graph indices), allocated on first use when streaming
+	protected double[] row(int i)
+	{
+		double[] row = matrix[i-params.start+1];
+		if (row != null)
+			return row;
+		
+		synchronized (this)
+		{
+			if (matrix[i-params.start+1] == null)
+				matrix[i-params.start+1] = new double[i+1];
+			return matrix[i-params.start+1];
+		}
+	}
+	
+	protected void closeJournal()
+	{
+		if (journal == null)
+			return;
+		
+		try
+		{
+			journal.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+		}
+		journal = null;
+	}
+	
+	/*
+	 * Parallel version of compute()
+	 * 
+	 * The lower triangle is cut into TILE_SIZE x TILE_SIZE tiles which are run by a
+	 * work-stealing pool of params.threads workers. Every cell is still computed independently by
+	 * compute(g1,g2), thus the matrix equals the serial one. A row is reported once
+	 * all of its tiles are done.
+	 * 
+	 * The cost of the cells differs by orders of magnitude, thus the tiles of a band
+	 * of TILE_SIZE rows are queued by their predicted cost (CostModel), largest first,
+	 * so that a few giant pairs don't straggle at the end of the band. The bands are
+	 * queued in row order, thus rows are done (journaled, streamed, quantized) as the
+	 * run goes instead of all at its end. A running tile is split into its rows, thus
+	 * idle workers take over the rows queued behind a pair that takes long.
+	 */
+	protected void computeTiled()
+	{
+		final CostModel costs = new CostModel(graphs);
+		final long starttime = System.currentTimeMillis();
+		final AtomicLong count = new AtomicLong(0);
+		long tocompute = 0;
+		
+		// cells still missing from each row
+		final AtomicIntegerArray rowleft = new AtomicIntegerArray(ec);
+		for (int i = params.start-1; i < params.end; i++)
+		{
+			tocompute += costs.rowCost(i);
+			if (done.get(i))
+				count.addAndGet(costs.rowCost(i));
+			else
+				rowleft.set(i-params.start+1, i+1);
+		}
+		
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int r0 = params.start-1; r0 < params.end; r0 += TILE_SIZE)
+		{
+			int r1 = Math.min(r0 + TILE_SIZE, params.end);
+			for (int c0 = 0; c0 < r1; c0 += TILE_SIZE)
+				tiles.add(new Tile(r0, r1, c0, Math.min(c0 + TILE_SIZE, r1), costs, rowleft, count, tocompute, starttime));
+		}
+		
+		Collections.sort(tiles, new Comparator<Tile>()
+		{
+			public int compare(Tile a, Tile b)
 			{
-				String dir = "";
-				if (graphs[i].getDirection() == 1)
-					dir = "_+1";
-				else if (graphs[i].getDirection() == -1)
-					dir = "_-1";
+				if (a.r0 != b.r0)
+					return Integer.compare(a.r0, b.r0);
+				return Long.compare(b.cost, a.cost);
+			}
+		});
+		
+		System.out.println("Computing " + tiles.size() + " tiles with " + params.threads + " threads");
+		
+		// the workers take the submitted tiles in the order of the queue, and steal the
+		// rows of a tile split behind a costly pair
+		ForkJoinPool pool = new ForkJoinPool(params.threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>(tiles.size());
+		for (Tile t : tiles)
+			futures.add(pool.submit(t));
+		pool.shutdown();
+		
+		// the first failing tile fails the whole matrix, as in the serial loop
+		try
+		{
+			for (Future<?> f : futures)
+				f.get();
+		}
+		catch (ExecutionException e)
+		{
+			pool.shutdownNow();
+			
+			// the pool hands over copies of an exception of another thread, each caused by
+			// the one before, down to the original
+			Throwable cause = e.getCause();
+			while (cause.getCause() != null && cause.getCause().getClass() == cause.getClass())
+				cause = cause.getCause();
+			
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		catch (InterruptedException e)
+		{
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing the tiles", e);
+		}
+	}
+	
+	// computes the cell [i,j] of the kernel matrix (in graph indices)
+	protected void computeCell(int i, int j)
+	{
+		double value = compute(graphs[i], graphs[j]);
+		setCell(i, j, value);
+		
+		if (i == j)
+			diagonal[i] = value;
+		
+		// nan's not allowed at this stage, infinities are ok
+		// after normalization nans are ok
+		assert !Double.isNaN(value);
+		
+		if (Double.isNaN(value))
+			System.out.println("Error: nan at " + i + " " + j);
+	}
+	
+	protected synchronized void printRow(int i, String update)
+	{
+		// also show percentage
+		// i.e. [34.3%] 
+		System.out.println("row " + (i+1) + "\t" + graphId(i) + ": computed " + update);
+	}
+	
+	// name of graph 'i', i.e. R00001_2_+1 for reactions
+	public String graphId(int i)
+	{
+		if (graphs[i] == null)
+			return "" + (i+1);
+		return graphId(graphs[i]);
+	}
+	
+	public static String graphId(Graph g)
+	{
+		if (g instanceof ReactionGraph)
+		{
+			String dir = "";
+			if (g.getDirection() == 1)
+				dir = "_+1";
+			else if (g.getDirection() == -1)
+				dir = "_-1";
+			
+			return g.getLigand() + "_" + ((ReactionGraph)g).getMapNum() + dir;
+		}
+		
+		return g.getLigand();
+	}
+	
+	// rectangular block [r0,r1) x [c0,c1) of the triangle, cells above the diagonal are skipped
+	private class Tile extends RecursiveAction
+	{
+		private int r0, r1, c0, c1;
+		private long cost; // predicted cost of the cells still to compute
+		private CostModel costs;
+		private AtomicIntegerArray rowleft;
+		private AtomicLong count;
+		private long tocompute, starttime;
+		
+		public Tile(int r0, int r1, int c0, int c1, CostModel costs, AtomicIntegerArray rowleft, AtomicLong count, long tocompute, long starttime)
+		{
+			this.r0 = r0;
+			this.r1 = r1;
+			this.c0 = c0;
+			this.c1 = c1;
+			this.costs = costs;
+			this.rowleft = rowleft;
+			this.count = count;
+			this.tocompute = tocompute;
+			this.starttime = starttime;
+			
+			for (int i = r0; i < r1; i++)
+				if (!done.get(i))
+					for (int j = c0; j < c1 && j <= i; j++)
+						cost += costs.cost(i, j);
+		}
+		
+		// rows [r0,r1) of 'tile', the cost is only needed for the queue
+		private Tile(Tile tile, int r0, int r1)
+		{
+			this.r0 = r0;
+			this.r1 = r1;
+			this.c0 = tile.c0;
+			this.c1 = tile.c1;
+			this.costs = tile.costs;
+			this.rowleft = tile.rowleft;
+			this.count = tile.count;
+			this.tocompute = tile.tocompute;
+			this.starttime = tile.starttime;
+		}
+		
+		protected void compute()
+		{
+			// halves of the rows, the second one is stolen by an idle worker
+			if (r1 - r0 > 1)
+			{
+				int m = (r0 + r1) / 2;
+				invokeAll(new Tile(this, r0, m), new Tile(this, m, r1));
+				return;
+			}
+			
+			for (int i = r0; i < r1; i++)
+			{
+				if (done.get(i))
+					continue;
+				
+				int cols = 0;
+				long rowcost = 0;
+				for (int j = c0; j < c1 && j <= i; j++)
+				{
+					computeCell(i, j);
+					rowcost += costs.cost(i, j);
+					cols++;
+				}
+				
+				if (cols == 0)
+					continue;
 				
-				// also show percentage
-				// i.e. [34.3%] 
-				System.out.println("row " + (i+1) + "\t" + graphs[i].getLigand() + "_" + ((ReactionGraph)graphs[i]).getMapNum() + dir + ": computed " + getUpdateStr(starttime, 1.0*count/tocompute));
+				long done = count.addAndGet(rowcost);
+				if (rowleft.addAndGet(i-params.start+1, -cols) == 0)
+				{
+					finishRow(i);
+					journalRow(i);
+					streamRow(i);
+					printRow(i, getUpdateStr(starttime, 1.0*done/tocompute));
+				}
 			}
-			else
-				System.out.println("row " + (i+1) + "\t" + graphs[i].getLigand() + ": computed " + getUpdateStr(starttime, 1.0*count/tocompute));
 		}
 	}
 	
 	public abstract double compute(Graph g1, Graph g2);
 	
+	// stores the per-length values of the cell of (g1,g2), g1 being the row graph
+	protected void storeLevels(Graph g1, Graph g2, double[] res)
+	{
+		levels[g1.getIndex()-params.start+1][g2.getIndex()] = res;
+	}
+	
+	// share diffusions with other kernels, e.g. over a parameter sweep
+	public void setDiffusions(DiffusionCache diffs)
+	{
+		this.diffs = diffs;
+	}
+	
+	// parameter string stored in binary matrix files
+	public String getParamString()
+	{
+		return params.toString();
+	}
+	
+	// precomputes the state of 'g', a graph outside of the kernel, until release(g)
+	public void prepare(Graph g)
+	{
+	}
+	
+	// drops the cached state of 'g', a graph outside of the kernel
+	public void release(Graph g)
+	{
+		if (diffs != null)
+			diffs.remove(g);
+	}
+	
+	public KernelParams getParams()
+	{
+		return params;
+	}
+	
+	// sets the cell [i,j] (in graph indices), e.g. when computed by another kernel
+	public void setCell(int i, int j, double value)
+	{
+		if (samples != null && samples[i-params.start+1] != null)
+			samples[i-params.start+1][j] = value;
+		
+		if (storage != null)
+			storage.set(i, j, value);
+		else
+			row(i)[j] = value;
+	}
+	
+	// sets row 'i' (in graph indices) from an earlier matrix, compute() skips it
+	public void presetRow(int i, double[] row)
+	{
+		for (int j = 0; j <= i; j++)
+			setCell(i, j, row[j]);
+		diagonal[i] = row[i];
+		finishRow(i);
+		done.set(i);
+	}
+	
+	// row 'i' (in graph indices) is complete, reduced precision storage quantizes it
+	public void finishRow(int i)
+	{
+		if (storage != null)
+			storage.finish(i);
+	}
+	
+	// cell [i,j] (in graph indices, j <= i)
+	public double getCell(int i, int j)
+	{
+		if (storage != null)
+			return storage.get(i, j);
+		return matrix[i-params.start+1][j];
+	}
+	
+	// the rows start..end, either the off-heap storage or a view of 'matrix'
+	public Triangle triangle()
+	{
+		if (storage != null)
+			return storage;
+		return Triangle.wrap(matrix, params.start, params.end);
+	}
+	
 	public double getValue(int i, int j)
 	{
 		// lower triangle matrix, if the (i,j) pair hits upper right triangle, return (j,i) cell
-		if (j < matrix[i].length)
-			return matrix[i][j];
-		return matrix[j][i];
+		if (j < params.start+i)
+			return getCell(i+params.start-1, j);
+		return getCell(j+params.start-1, i);
 	}
 	
 	public void normalize()
 	{
-		double[][] normalized_matrix = new double[count][];
+		// in place, thus the diagonal is saved first
+		double[] diag = new double[count];
 		for (int i = 0; i < count; i++)
-			normalized_matrix[i] = new double[i+1];
+			diag[i] = getCell(i, i);
+		rawdiag = diag;
 		
+		Triangle t = triangle();
 		for (int i = 0; i < count; i++)
+		{
+			double[] row = t.getRow(i);
 			for (int j = 0; j <= i; j++)
-				if (Math.sqrt(matrix[i][i]*matrix[j][j]) != 0.0)
-					normalized_matrix[i][j] = matrix[i][j] / Math.sqrt( matrix[i][i] * matrix[j][j] );
+				if (Math.sqrt(diag[i]*diag[j]) != 0.0)
+					row[j] = row[j] / Math.sqrt( diag[i] * diag[j] );
+				else
+					row[j] = 0.0;
+			t.setRow(i, row);
+		}
+	}
+	
+	// largest error of the reduced precision storage against the sample rows in double,
+	// normalized as the matrix if it is, thus including the error of normalizing stored cells
+	public void reportPrecision()
+	{
+		if (!(storage instanceof ReducedTriangle) || samples == null)
+			return;
 		
-		matrix = normalized_matrix;
+		double maxerror = 0.0, maxrelerror = 0.0;
+		int rows = 0;
+		for (int r = 0; r < ec; r++)
+		{
+			if (samples[r] == null)
+				continue;
+			rows++;
+			
+			int i = r + params.start - 1;
+			for (int j = 0; j <= i; j++)
+			{
+				double exact = samples[r][j];
+				if (rawdiag != null)
+					exact = Math.sqrt(rawdiag[i]*rawdiag[j]) != 0.0 ? exact / Math.sqrt(rawdiag[i]*rawdiag[j]) : 0.0;
+				
+				double err = Math.abs(getCell(i, j) - exact);
+				if (Double.isNaN(err) && !(Double.isNaN(exact) && Double.isNaN(getCell(i, j))))
+					err = Double.POSITIVE_INFINITY;
+				if (err > maxerror)
+					maxerror = err;
+				if (exact != 0.0 && err / Math.abs(exact) > maxrelerror)
+					maxrelerror = err / Math.abs(exact);
+			}
+		}
+		
+		System.out.println("Stored as " + ((ReducedTriangle)storage).getPrecision() + ", max abs error " + maxerror + ", max rel error " + maxrelerror
+				+ " against float64 (sample of " + rows + " rows)");
 	}
 	
 	public MoleculeGraph[] parseSubstrates()
@@ -240,12 +796,13 @@ public abstract class Kernel
 			{
 				for (int j = 0; j <= i; j++)
 				{
-					if (Double.isInfinite(matrix[i][j]))
+					double value = getCell(i, j);
+					if (Double.isInfinite(value))
 						out.write("Inf");
-					else if (Double.isNaN(matrix[i][j]))
+					else if (Double.isNaN(value))
 						out.write("NaN");
 					else
-						out.write( df.format(matrix[i][j]));
+						out.write( df.format(value));
 					
 					out.write("\t");
 				}
@@ -276,12 +833,13 @@ public abstract class Kernel
 			{
 				for (int j = 0; j <= i; j++)
 				{
-					if (Double.isInfinite(matrix[i-params.start+1][j]))
+					double value = getCell(i, j);
+					if (Double.isInfinite(value))
 						out.write("Inf");
-					else if (Double.isNaN(matrix[i-params.start+1][j]))
+					else if (Double.isNaN(value))
 						out.write("NaN");
 					else
-						out.write(df.format(matrix[i-params.start+1][j]));
+						out.write(df.format(value));
 					
 					out.write("\t");
 				}
@@ -299,8 +857,77 @@ public abstract class Kernel
 		System.out.println("Partial kernel (" + params.start + ".." + params.end + ") written to file " + filename);
 	}
 	
+	// binary formats of MatrixIO, rows start..end as in writePartialToFile()
+	public void writeBinaryToFile(String filename, MatrixFormat format)
+	{
+		try
+		{
+			MatrixIO.write(format, filename, triangle(), getParamString(), graphIds());
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+			return;
+		}
+		
+		System.out.println("Kernel (" + params.start + ".." + params.end + ") written to " + format + " file " + filename);
+	}
+	
+	// ids of the graphs 1..end, as stored in binary matrix files
+	protected String[] graphIds()
+	{
+		String[] ids = new String[params.end];
+		for (int i = 0; i < params.end; i++)
+			ids[i] = graphId(i);
+		return ids;
+	}
+	
+	// reads the rows of a MatrixIO file, which must have the rows start..end of this kernel
+	public void readFromFile(String filename) throws IOException
+	{
+		MatrixIO.Stored m = MatrixIO.read(filename);
+		if (m.start != params.start || m.end != params.end)
+			throw new IOException("Rows " + m.start + ".." + m.end + " in " + filename + ", expected " + params.start + ".." + params.end);
+		
+		matrix = m.rows;
+		storage = null;
+	}
+	
+	/*
+	 * Writes the per-length values as a binary tensor of floats (KLEN of MatrixIO):
+	 * 
+	 *   header with start, end, maxlen, the parameter string and the graph ids
+	 *   rows x cols x maxlen floats, value of length 'l' of cell (i,j) at (i*cols + j)*maxlen + l-1
+	 * 
+	 * rows are start..end and cols 1..end, the upper triangle is mirrored from the 
+	 * lower one where available and zero otherwise (partial matrices).
+	 */
+	public void writeLevelsToFile(String filename)
+	{
+		if (levels == null)
+		{
+			System.out.println("No per-length values recorded, not writing " + filename);
+			return;
+		}
+		
+		// values are raw, whether the matrix is normalized or not
+		try
+		{
+			MatrixIO.writeLevels(filename, levels, params.start, params.end, params.maxlen, getParamString().replace("-normalized-", "-raw-"), graphIds());
+		}
+		catch (IOException e)
+		{
+			System.out.println(e.getMessage());
+			return;
+		}
+		
+		System.out.println("Per-length values written to file " + filename);
+	}
+	
 	public String toString()
 	{
+		if (storage != null)
+			return "Triangle " + params.start + ".." + params.end;
 		return Arrays.deepToString(matrix);
 	}
 	
@@ -316,7 +943,7 @@ public abstract class Kernel
 		{
 			System.out.print(graphs[i].getLigand() + ": [ ");
 			for (int j = start-1; j <= i; j++)
-				System.out.format(Locale.ENGLISH, "%.3f       ", matrix[i][j]);
+				System.out.format(Locale.ENGLISH, "%.3f       ", getValue(i, j));
 			System.out.println("");
 		}
 	}
@@ -396,6 +1023,86 @@ public abstract class Kernel
 		return maxval;
 	}
 	
+	// Precomputed model, weights of the active weighting function are computed
+	// once per graph (and parameters) and stored in the graph
+	protected double nodeWeight(Node v)
+	{
+		return nodeWeights(v.getParent())[v.getId()];
+	}
+	
+	protected double nodeWeight(PGNode v)
+	{
+		return nodeWeight(v.a1) * nodeWeight(v.a2);
+	}
+	
+	protected double[] nodeWeights(Graph g)
+	{
+		String key = weightKey();
+		double[] w = g.getNodeWeight(key);
+		if (w == null)
+		{
+			w = computeNodeWeights(g);
+			g.setNodeWeight(key, w);
+		}
+		return w;
+	}
+	
+	protected double[] computeNodeWeights(Graph g)
+	{
+		Node[] nodes = g.getNodes();
+		double[] w = new double[nodes.length];
+		
+		if (params.kw == KernelWeight.Diffusion)
+		{
+			// max diffusion value against reaction core, single pass over the core columns
+			Diffusion diff = diffs.get(g);
+			for (Node x : nodes)
+			{
+				if (x.getCoreDist() != 0)
+					continue;
+				
+				for (int a = 0; a < nodes.length; a++)
+					if (diff.get(x.getId(), a) > w[a])
+						w[a] = diff.get(x.getId(), a);
+			}
+			
+			if (params.beta < 0.0) // negative
+				for (int a = 0; a < nodes.length; a++)
+					w[a] = 1.0 - w[a];
+			
+			return w;
+		}
+		
+		for (int a = 0; a < nodes.length; a++)
+		{
+			assert nodes[a].getId() == a;
+			
+			if (params.kw == KernelWeight.Exponential)
+				w[a] = exp(nodes[a]);
+			else if (params.kw == KernelWeight.Logistic)
+				w[a] = logistic(nodes[a]);
+			else
+				w[a] = 1.0;
+		}
+		
+		return w;
+	}
+	
+	// weights depend on the weighting function and its parameters only
+	private String weightKey()
+	{
+		String key = weightkey;
+		if (key == null || keykw != params.kw || keyalpha != params.alpha || keybeta != params.beta)
+		{
+			key = params.kw + "/" + params.alpha + "/" + params.beta;
+			keykw = params.kw;
+			keyalpha = params.alpha;
+			keybeta = params.beta;
+			weightkey = key;
+		}
+		return key;
+	}
+	
 	
 	// Lambda model
 	protected double lambda(PGNode v)
@@ -8,6 +8,19 @@ public class KernelParams
 {
 	public double alpha, beta, epsilon, lambda;
 	public int maxlen, start, end;
+	public int threads; // worker threads, <= 1 computes serially
+	public boolean implicit; // walks on the implicit kronecker product graph
+	public boolean solve; // infinite length marginal walks by a linear solve
+	public int diffcache; // diffusion cache size in MB, <= 0 keeps all matrices
+	public boolean spectral; // diffusions from eigendecompositions
+	public double[] lambdas; // lambda sweep, null if not used
+	public boolean bylength; // record the per-length values of the cells
+	public String journal; // row journal file, null if not used
+	public boolean stream; // rows are written once done, the matrix is not kept
+	public boolean direct; // matrix stored off-heap, see DirectTriangle
+	public int mapsize; // off-heap matrices larger than this (in MB) are file mapped, <= 0 never
+	public Precision precision = Precision.FLOAT64; // storage precision of the matrix
+	public int memory; // budget of the product graphs in flight in MB, <= 0 is 3/4 of the free heap
 	public boolean walks, nontottering, paths, reduced, normalize, partialnorm, nodematch, edgematch;
 	public KernelOperationType op;
 	public KernelWeight kw;
@@ -18,7 +31,8 @@ public class KernelParams
 		// format for resulting files is:
 		// kernel-TYPE-K-LAMBDA-ALPHA-BETA-SIGMA-NORMALIZE-TOTTERING-REDUCED-OPERATION-START-END.txt
 		//
-		// where NORMALIZE = "normalized" or "raw"
+		// where K = "inf" for infinite length walks (solve)
+		//       NORMALIZE = "normalized" or "raw"
 		//       TOTTERING = "notottering" or "tottering"
 		//       REDUCED = "reducedpg" or "plainpg"
 		//       OPERATION = dot | indicator | min | minnorm
@@ -26,7 +40,7 @@ public class KernelParams
 		DecimalFormat df = new DecimalFormat("0.00", new DecimalFormatSymbols(Locale.US));
 		
 		String str = "";
-		str += maxlen + "-" + df.format(lambda) + "-" + df.format(alpha) + "-";
+		str += (solve ? "inf" : "" + maxlen) + "-" + df.format(lambda) + "-" + df.format(alpha) + "-";
 		
 		if (beta == Double.MAX_VALUE)
 			str +="inf-";
@@ -78,6 +92,19 @@ public class KernelParams
 		x.maxlen = maxlen;
 		x.start = start;
 		x.end = end;
+		x.threads = threads;
+		x.implicit = implicit;
+		x.solve = solve;
+		x.diffcache = diffcache;
+		x.spectral = spectral;
+		x.lambdas = lambdas;
+		x.bylength = bylength;
+		x.journal = journal;
+		x.stream = stream;
+		x.direct = direct;
+		x.mapsize = mapsize;
+		x.precision = precision;
+		x.memory = memory;
 		x.nontottering = nontottering;
 		x.reduced = reduced;
 		x.paths = paths;
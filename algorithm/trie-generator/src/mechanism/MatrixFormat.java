@@ -0,0 +1,46 @@
+package mechanism;
+
+public enum MatrixFormat
+{
+	TXT, // tab separated lower triangle, Kernel.writeToFile()
+	PACKED, // binary packed lower triangle with a header, float64
+	PACKED32, // same with float32
+	PACKED16, // same with float16
+	PACKED8, // same with 8 bits per cell, scaled per row
+	NPY, // numpy .npy, float64
+	MAT; // MATLAB v5 .mat, float64
+	
+	// bytes per value of the packed formats, 0 for the others
+	public int packedBytes()
+	{
+		if (this == PACKED)
+			return 8;
+		if (this == PACKED32)
+			return 4;
+		if (this == PACKED16)
+			return 2;
+		if (this == PACKED8)
+			return 1;
+		
+		return 0;
+	}
+	
+	// the precisions have their own extensions, thus runs at different ones don't overwrite each other
+	public String extension()
+	{
+		if (this == PACKED)
+			return ".kmat";
+		if (this == PACKED32)
+			return ".kmat32";
+		if (this == PACKED16)
+			return ".kmat16";
+		if (this == PACKED8)
+			return ".kmat8";
+		if (this == NPY)
+			return ".npy";
+		if (this == MAT)
+			return ".mat";
+		
+		return ".txt";
+	}
+}
@@ -0,0 +1,725 @@
+package mechanism;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.*;
+
+/*
+ * Binary kernel matrix files, all little-endian
+ *
+ * PACKED(32)  "KMAT", int version, int bytes per value (8, 4 or 2), int start, int end,
+ * PACKED16    the parameter string and the ids of graphs 1..end (int length + UTF-8 each),
+ *             followed by the rows start..end of the lower triangle, row 'i' having i values
+ * PACKED8     same header with 1 byte per value, row 'i' is double lo, double step,
+ *             double diagonal and i bytes q, cell [i,j] = lo + q*step (QuantizedTriangle)
+ * NPY         numpy array of shape (end-start+1, end), float64
+ * MAT         MATLAB v5 file with a single double matrix 'K' of the same shape
+ * KLEN        per-length values, "KLEN", int version, int start, int end, int maxlen, the
+ *             parameter string and the ids as in PACKED, followed by the rows start..end,
+ *             each of columns 1..end, each of float32 values of the lengths 1..maxlen
+ *
+ * The rectangular formats hold rows start..end and columns 1..end, the upper triangle
+ * is mirrored from the lower one where available and zero otherwise (partial matrices).
+ * Files of none of these formats are read as the text of Kernel.writeToFile(), the
+ * rows of which tell their index by their length. The packed formats are written row
+ * after row, thus they can be streamed (PackedWriter), the rectangular ones can't.
+ *
+ * Files are written and read through a file channel with a large direct buffer.
+ */
+public class MatrixIO
+{
+	public static int BUFFER_SIZE = 1 << 24;
+
+	// a matrix read from a file, rows are the lower triangle rows start..end
+	public static class Stored
+	{
+		public int start, end;
+		public String params;
+		public String[] ids;
+		public double[][] rows;
+	}
+
+	public static void write(MatrixFormat format, String filename, Triangle rows, String params, String[] ids) throws IOException
+	{
+		Output out = new Output(filename);
+
+		if (format.packedBytes() > 0)
+			writePacked(out, rows, params, ids, format.packedBytes());
+		else if (format == MatrixFormat.NPY)
+			writeNpy(out, rows);
+		else if (format == MatrixFormat.MAT)
+			writeMat(out, rows);
+		else
+		{
+			out.close();
+			throw new IOException("Not a binary format: " + format);
+		}
+
+		out.close();
+	}
+
+	public static Stored read(String filename) throws IOException
+	{
+		Input in = new Input(filename);
+		Stored m;
+
+		byte[] magic = in.bytes(4);
+		if (magic[0] == 'K' && magic[1] == 'M' && magic[2] == 'A' && magic[3] == 'T')
+			m = readPacked(in);
+		else if ((magic[0] & 0xff) == 0x93 && magic[1] == 'N' && magic[2] == 'U' && magic[3] == 'M')
+			m = readNpy(in);
+		else if (magic[0] == 'M' && magic[1] == 'A' && magic[2] == 'T' && magic[3] == 'L')
+			m = readMat(in);
+		else
+		{
+			in.close();
+			return readText(filename);
+		}
+
+		in.close();
+		return m;
+	}
+
+	/*
+	 * Stitches partial matrices (e.g. of shards) into one, the rows must cover 1..end
+	 * without gaps or overlaps, and the ids and parameters, where stored, must agree.
+	 * 'end' <= 0 takes the last row of the parts as the end.
+	 */
+	public static Stored merge(List<Stored> parts, int end) throws IOException
+	{
+		List<Stored> sorted = new ArrayList<Stored>(parts);
+		Collections.sort(sorted, new Comparator<Stored>()
+		{
+			public int compare(Stored a, Stored b)
+			{
+				return a.start - b.start;
+			}
+		});
+
+		Stored m = new Stored();
+		m.start = 1;
+		m.end = sorted.get(sorted.size()-1).end;
+		m.rows = new double[m.end][];
+
+		int next = 1;
+		for (Stored p : sorted)
+		{
+			if (p.start < next)
+				throw new IOException("Rows " + p.start + ".." + (next-1) + " are in several parts");
+			if (p.start > next)
+				throw new IOException("Rows " + next + ".." + (p.start-1) + " are missing");
+
+			if (p.ids != null)
+			{
+				for (int i = 0; i < p.ids.length && m.ids != null && i < m.ids.length; i++)
+					if (!p.ids[i].equals(m.ids[i]))
+						throw new IOException("Graph " + (i+1) + " is " + m.ids[i] + " in one part and " + p.ids[i] + " in another");
+				if (m.ids == null || p.ids.length > m.ids.length)
+					m.ids = p.ids;
+			}
+			if (p.params != null)
+			{
+				if (m.params != null && !m.params.equals(p.params))
+					throw new IOException("Parts of different kernels: " + m.params + " and " + p.params);
+				m.params = p.params;
+			}
+
+			for (int r = 0; r < p.rows.length; r++)
+				m.rows[p.start-1 + r] = p.rows[r];
+			next = p.end + 1;
+		}
+
+		if (end > m.end)
+			throw new IOException("Rows " + (m.end+1) + ".." + end + " are missing");
+		if (end > 0 && end < m.end)
+			throw new IOException("Rows " + (end+1) + ".." + m.end + " are beyond the end " + end);
+
+		return m;
+	}
+
+
+	/*
+	 * Per-length tensor, levels[i-start+1][j][l] is the value of length 'l' of the cell
+	 * [i,j] (j <= i) in graph indices, missing cells and lengths are zero
+	 */
+	public static void writeLevels(String filename, double[][][] levels, int start, int end, int maxlen, String params, String[] ids) throws IOException
+	{
+		Output out = new Output(filename);
+
+		out.put("KLEN".getBytes("US-ASCII"));
+		out.putInt(1);
+		out.putInt(start);
+		out.putInt(end);
+		out.putInt(maxlen);
+		out.putString(params);
+		for (int i = 0; i < end; i++)
+			out.putString(ids[i]);
+
+		for (int i = start-1; i < end; i++)
+		{
+			for (int j = 0; j < end; j++)
+			{
+				double[] res = null;
+				if (j <= i)
+					res = levels[i-start+1][j];
+				else if (j >= start-1)
+					res = levels[j-start+1][i];
+
+				for (int l = 1; l <= maxlen; l++)
+					out.putFloat(res == null || l >= res.length ? 0.0f : (float)res[l]);
+			}
+		}
+
+		out.close();
+	}
+
+
+	/*
+	 * Packed lower triangle
+	 */
+
+	private static void writePacked(Output out, Triangle rows, String params, String[] ids, int bytes) throws IOException
+	{
+		writePackedHeader(out, rows.getStart(), rows.getEnd(), params, ids, bytes);
+		for (int i = rows.getStart()-1; i < rows.getEnd(); i++)
+			writePackedRow(out, i, rows.getRow(i), bytes);
+	}
+
+	private static void writePackedHeader(Output out, int start, int end, String params, String[] ids, int bytes) throws IOException
+	{
+		out.put("KMAT".getBytes("US-ASCII"));
+		out.putInt(1);
+		out.putInt(bytes);
+		out.putInt(start);
+		out.putInt(end);
+		out.putString(params);
+		for (int i = 0; i < end; i++)
+			out.putString(ids[i]);
+	}
+
+	// row 'i' (in graph indices) of i+1 values
+	private static void writePackedRow(Output out, int i, double[] row, int bytes) throws IOException
+	{
+		if (bytes == 1)
+		{
+			double diagonal = row[i];
+			row = Arrays.copyOf(row, i);
+			
+			double[] scale = QuantizedTriangle.scale(row);
+			out.putDouble(scale[0]);
+			out.putDouble(scale[1]);
+			out.putDouble(diagonal);
+			for (int j = 0; j < i; j++)
+				out.put(QuantizedTriangle.quantize(row[j], scale[0], scale[1]));
+			return;
+		}
+		
+		for (int j = 0; j <= i; j++)
+		{
+			if (bytes == 4)
+				out.putFloat((float)row[j]);
+			else if (bytes == 2)
+				out.putShort(HalfTriangle.toHalf(row[j]));
+			else
+				out.putDouble(row[j]);
+		}
+	}
+
+	/*
+	 * Packed file written a row at a time, rows start..end in order (streaming)
+	 */
+	public static class PackedWriter
+	{
+		private Output out;
+		private int bytes;
+
+		public PackedWriter(MatrixFormat format, String filename, int start, int end, String params, String[] ids) throws IOException
+		{
+			bytes = format.packedBytes();
+			if (bytes == 0)
+				throw new IOException("Not a packed format: " + format);
+
+			out = new Output(filename);
+			writePackedHeader(out, start, end, params, ids, bytes);
+		}
+
+		public void write(int i, double[] row) throws IOException
+		{
+			writePackedRow(out, i, row, bytes);
+		}
+
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+
+	private static Stored readPacked(Input in) throws IOException
+	{
+		Stored m = new Stored();
+
+		if (in.getInt() != 1)
+			throw new IOException("Unknown packed matrix version");
+		int bytes = in.getInt();
+		m.start = in.getInt();
+		m.end = in.getInt();
+		m.params = in.getString();
+		m.ids = new String[m.end];
+		for (int i = 0; i < m.end; i++)
+			m.ids[i] = in.getString();
+
+		m.rows = new double[m.end - m.start + 1][];
+		for (int r = 0; r < m.rows.length; r++)
+		{
+			m.rows[r] = new double[m.start + r];
+			
+			if (bytes == 1)
+			{
+				double lo = in.getDouble();
+				double step = in.getDouble();
+				m.rows[r][m.rows[r].length-1] = in.getDouble();
+				for (int j = 0; j < m.rows[r].length-1; j++)
+					m.rows[r][j] = lo + (in.get() & 0xff) * step;
+				continue;
+			}
+			
+			for (int j = 0; j < m.rows[r].length; j++)
+			{
+				if (bytes == 4)
+					m.rows[r][j] = in.getFloat();
+				else if (bytes == 2)
+					m.rows[r][j] = HalfTriangle.toDouble(in.getShort());
+				else
+					m.rows[r][j] = in.getDouble();
+			}
+		}
+
+		return m;
+	}
+
+
+	/*
+	 * numpy .npy, format version 1.0
+	 */
+
+	private static void writeNpy(Output out, Triangle rows) throws IOException
+	{
+		int start = rows.getStart(), end = rows.getEnd();
+		String header = "{'descr': '<f8', 'fortran_order': False, 'shape': (" + (end-start+1) + ", " + end + "), }";
+
+		// magic, version and header length take 10 bytes, the header ends in a newline
+		// and is padded with spaces to align the data to 64 bytes
+		while ((10 + header.length() + 1) % 64 != 0)
+			header += " ";
+		header += "\n";
+
+		out.put(new byte[] {(byte)0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+		out.putShort((short)header.length());
+		out.put(header.getBytes("US-ASCII"));
+
+		for (int i = start-1; i < end; i++)
+			for (int j = 0; j < end; j++)
+				out.putDouble(cell(rows, i, j));
+	}
+
+	private static Stored readNpy(Input in) throws IOException
+	{
+		in.bytes(2); // "PY"
+		int major = in.get();
+		in.get();
+		int len = major == 1 ? (in.getShort() & 0xffff) : in.getInt();
+		String header = new String(in.bytes(len), "US-ASCII");
+
+		if (header.indexOf("'fortran_order': False") < 0)
+			throw new IOException("Only C ordered npy matrices are supported");
+		boolean single = header.indexOf("'<f4'") >= 0;
+		if (!single && header.indexOf("'<f8'") < 0)
+			throw new IOException("Only little-endian float npy matrices are supported");
+
+		String shape = header.substring(header.indexOf("(") + 1, header.indexOf(")"));
+		String[] dims = shape.split(",");
+		int nrows = Integer.parseInt(dims[0].trim());
+		int ncols = Integer.parseInt(dims[1].trim());
+
+		Stored m = new Stored();
+		m.end = ncols;
+		m.start = ncols - nrows + 1;
+		m.rows = new double[nrows][];
+		for (int r = 0; r < nrows; r++)
+		{
+			m.rows[r] = new double[m.start + r];
+			for (int j = 0; j < ncols; j++)
+			{
+				double v = single ? in.getFloat() : in.getDouble();
+				if (j < m.rows[r].length)
+					m.rows[r][j] = v;
+			}
+		}
+
+		return m;
+	}
+
+
+	/*
+	 * MATLAB v5 .mat, a single miMATRIX element of class double named 'K'
+	 */
+
+	private static final int miINT8 = 1, miINT32 = 5, miUINT32 = 6, miDOUBLE = 9, miMATRIX = 14;
+	private static final int mxDOUBLE_CLASS = 6;
+
+	private static void writeMat(Output out, Triangle rows) throws IOException
+	{
+		int start = rows.getStart(), end = rows.getEnd();
+		long databytes = 8L * (end-start+1) * end;
+		if (56 + databytes > Integer.MAX_VALUE)
+			throw new IOException("Matrix too large for a MAT v5 file, use npy instead");
+
+		// 116 bytes of text, subsystem data offset, version and endian indicator
+		byte[] text = new byte[116];
+		Arrays.fill(text, (byte)' ');
+		byte[] desc = "MATLAB 5.0 MAT-file, kernel matrix written by Mechanism".getBytes("US-ASCII");
+		System.arraycopy(desc, 0, text, 0, desc.length);
+		out.put(text);
+		out.put(new byte[8]);
+		out.putShort((short)0x0100);
+		out.put(new byte[] {'I', 'M'});
+
+		out.putInt(miMATRIX);
+		out.putInt((int)(56 + databytes));
+
+		// array flags
+		out.putInt(miUINT32);
+		out.putInt(8);
+		out.putInt(mxDOUBLE_CLASS);
+		out.putInt(0);
+
+		// dimensions
+		out.putInt(miINT32);
+		out.putInt(8);
+		out.putInt(end-start+1);
+		out.putInt(end);
+
+		// name, padded to 8 bytes
+		out.putInt(miINT8);
+		out.putInt(1);
+		out.put(new byte[] {'K', 0, 0, 0, 0, 0, 0, 0});
+
+		// values in column-major order
+		out.putInt(miDOUBLE);
+		out.putInt((int)databytes);
+		for (int j = 0; j < end; j++)
+			for (int i = start-1; i < end; i++)
+				out.putDouble(cell(rows, i, j));
+	}
+
+	private static Stored readMat(Input in) throws IOException
+	{
+		in.bytes(120); // rest of the header text and subsystem offset
+		in.bytes(4); // version and endian indicator
+
+		if (in.getInt() != miMATRIX)
+			throw new IOException("Only MAT files of a single matrix are supported");
+		in.getInt();
+
+		// array flags
+		in.getInt();
+		in.getInt();
+		if ((in.getInt() & 0xff) != mxDOUBLE_CLASS)
+			throw new IOException("Only double MAT matrices are supported");
+		in.getInt();
+
+		// dimensions
+		in.getInt();
+		in.getInt();
+		int nrows = in.getInt();
+		int ncols = in.getInt();
+
+		// name, either a small element or a padded one
+		int tag = in.getInt();
+		if ((tag >>> 16) != 0)
+			in.getInt();
+		else
+		{
+			int len = in.getInt();
+			in.bytes((len + 7) / 8 * 8);
+		}
+
+		if (in.getInt() != miDOUBLE)
+			throw new IOException("Only double MAT matrices are supported");
+		in.getInt();
+
+		Stored m = new Stored();
+		m.end = ncols;
+		m.start = ncols - nrows + 1;
+		m.rows = new double[nrows][];
+		for (int r = 0; r < nrows; r++)
+			m.rows[r] = new double[m.start + r];
+
+		for (int j = 0; j < ncols; j++)
+		{
+			for (int r = 0; r < nrows; r++)
+			{
+				double v = in.getDouble();
+				if (j < m.rows[r].length)
+					m.rows[r][j] = v;
+			}
+		}
+
+		return m;
+	}
+
+	/*
+	 * Tab separated text, row 'i' has i values
+	 */
+
+	// rows start..end as in Kernel.writePartialToFile(), the same as writeToFile() if start is 1
+	public static void writeText(String filename, Triangle rows) throws IOException
+	{
+		DecimalFormat df = new DecimalFormat("0.#####E0", new DecimalFormatSymbols(Locale.US));
+		BufferedWriter out = new BufferedWriter(new FileWriter(filename));
+
+		for (int i = rows.getStart()-1; i < rows.getEnd(); i++)
+		{
+			for (int j = 0; j <= i; j++)
+			{
+				double value = rows.get(i, j);
+				if (Double.isInfinite(value))
+					out.write("Inf");
+				else if (Double.isNaN(value))
+					out.write("NaN");
+				else
+					out.write(df.format(value));
+
+				out.write("\t");
+			}
+
+			out.newLine();
+		}
+
+		out.close();
+	}
+
+	private static Stored readText(String filename) throws IOException
+	{
+		List<double[]> rows = new ArrayList<double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			if (line.trim().length() == 0)
+				continue;
+
+			String[] vals = line.trim().split("\t");
+			double[] row = new double[vals.length];
+			try
+			{
+				for (int j = 0; j < vals.length; j++)
+				{
+					if (vals[j].equals("Inf"))
+						row[j] = Double.POSITIVE_INFINITY;
+					else
+						row[j] = Double.parseDouble(vals[j]);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				in.close();
+				throw new IOException("Unknown matrix file format: " + filename);
+			}
+
+			if (!rows.isEmpty() && row.length != rows.get(rows.size()-1).length + 1)
+			{
+				in.close();
+				throw new IOException("Row " + (rows.size()+1) + " of " + filename + " has " + row.length + " values, not " + (rows.get(rows.size()-1).length + 1));
+			}
+			rows.add(row);
+		}
+		in.close();
+
+		if (rows.isEmpty())
+			throw new IOException("No rows in " + filename);
+
+		Stored m = new Stored();
+		m.start = rows.get(0).length;
+		m.end = m.start + rows.size() - 1;
+		m.rows = rows.toArray(new double[rows.size()][]);
+		return m;
+	}
+
+	// cell (i,j) in graph indices, mirrored above the diagonal, zero if not available
+	private static double cell(Triangle rows, int i, int j)
+	{
+		if (j <= i)
+			return rows.get(i, j);
+		if (j >= rows.getStart()-1)
+			return rows.get(j, i);
+		return 0.0;
+	}
+
+
+	// buffered channel output
+	private static class Output
+	{
+		private FileChannel ch;
+		private ByteBuffer buf;
+
+		public Output(String filename) throws IOException
+		{
+			ch = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		private void ensure(int n) throws IOException
+		{
+			if (buf.remaining() < n)
+				flush();
+		}
+
+		public void put(byte[] b) throws IOException
+		{
+			for (int off = 0; off < b.length; )
+			{
+				ensure(1);
+				int n = Math.min(buf.remaining(), b.length - off);
+				buf.put(b, off, n);
+				off += n;
+			}
+		}
+
+		public void put(byte v) throws IOException
+		{
+			ensure(1);
+			buf.put(v);
+		}
+
+		public void putShort(short v) throws IOException
+		{
+			ensure(2);
+			buf.putShort(v);
+		}
+
+		public void putInt(int v) throws IOException
+		{
+			ensure(4);
+			buf.putInt(v);
+		}
+
+		public void putFloat(float v) throws IOException
+		{
+			ensure(4);
+			buf.putFloat(v);
+		}
+
+		public void putDouble(double v) throws IOException
+		{
+			ensure(8);
+			buf.putDouble(v);
+		}
+
+		public void putString(String s) throws IOException
+		{
+			byte[] b = (s == null ? "" : s).getBytes("UTF-8");
+			putInt(b.length);
+			put(b);
+		}
+
+		public void flush() throws IOException
+		{
+			buf.flip();
+			while (buf.hasRemaining())
+				ch.write(buf);
+			buf.clear();
+		}
+
+		public void close() throws IOException
+		{
+			flush();
+			ch.close();
+		}
+	}
+
+	// buffered channel input
+	private static class Input
+	{
+		private FileChannel ch;
+		private ByteBuffer buf;
+
+		public Input(String filename) throws IOException
+		{
+			ch = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+			buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buf.flip();
+		}
+
+		private void ensure(int n) throws IOException
+		{
+			if (buf.remaining() >= n)
+				return;
+
+			buf.compact();
+			while (buf.position() < n)
+				if (ch.read(buf) < 0)
+					throw new EOFException();
+			buf.flip();
+		}
+
+		public byte[] bytes(int n) throws IOException
+		{
+			byte[] b = new byte[n];
+			for (int off = 0; off < n; )
+			{
+				ensure(1);
+				int len = Math.min(buf.remaining(), n - off);
+				buf.get(b, off, len);
+				off += len;
+			}
+			return b;
+		}
+
+		public int get() throws IOException
+		{
+			ensure(1);
+			return buf.get();
+		}
+
+		public short getShort() throws IOException
+		{
+			ensure(2);
+			return buf.getShort();
+		}
+
+		public int getInt() throws IOException
+		{
+			ensure(4);
+			return buf.getInt();
+		}
+
+		public float getFloat() throws IOException
+		{
+			ensure(4);
+			return buf.getFloat();
+		}
+
+		public double getDouble() throws IOException
+		{
+			ensure(8);
+			return buf.getDouble();
+		}
+
+		public String getString() throws IOException
+		{
+			return new String(bytes(getInt()), "UTF-8");
+		}
+
+		public void close() throws IOException
+		{
+			ch.close();
+		}
+	}
+}
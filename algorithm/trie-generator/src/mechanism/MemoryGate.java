@@ -0,0 +1,164 @@
+package mechanism;
+
+import java.util.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Admission control of the product graphs built at the same time by worker threads
+ *
+ * The footprint of a pair (product graph and walk DP) is estimated from the graphs
+ * before anything is built. The nodes are counted from the formulas as in CostModel,
+ * the edges are estimated by the product of the mean degrees of the two graphs.
+ * A pair is admitted once its footprint fits into the budget next to the pairs in
+ * flight, larger pairs are held back until the others are done. A pair larger than
+ * the whole budget is run alone, or on the implicit Kronecker graph (n1*n2 doubles,
+ * no edges) if the kernel has such a walk DP.
+ *
+ * The estimates are rough, the budget is thus by default 3/4 of the heap free when
+ * the first kernel is created. All kernels of the process share that one gate, e.g.
+ * the kernels of --multi or of the query service computed side by side.
+ */
+public class MemoryGate
+{
+	private static MemoryGate shared = null;
+
+	private long budget; // in bytes
+	private long inuse;
+	private int held, fallbacks;
+
+	public MemoryGate(long budget)
+	{
+		this.budget = budget;
+	}
+
+	// the gate of the process, created on first use
+	public static synchronized MemoryGate shared(int megabytes)
+	{
+		if (shared == null)
+			shared = create(megabytes);
+		return shared;
+	}
+
+	// 'megabytes' <= 0 uses 3/4 of the free heap
+	public static MemoryGate create(int megabytes)
+	{
+		if (megabytes > 0)
+			return new MemoryGate((long)megabytes * 1024 * 1024);
+
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		return new MemoryGate(free / 4 * 3);
+	}
+
+	// bytes of the array product graph of (g1,g2) and its walk DP
+	public static long footprint(Graph g1, Graph g2, KernelParams params)
+	{
+		long n1 = g1.getSize();
+		long n2 = g2.getSize();
+		long nc = nodes(g1, g2);
+		long slots = 2 * edges(g1, g2, nc); // both directions
+
+		long bytes = n1*n2*4 + nc*12 + slots*12; // index, nodes and offsets, neighbors (with growth) and edge ids
+		if (params.paths)
+			bytes += nc*64 + slots*48; // object nodes and edges
+		else if (params.nontottering)
+			bytes += slots*8*4;
+		else
+			bytes += nc*8*3;
+
+		return bytes;
+	}
+
+	// bytes of the implicit Kronecker graph of (g1,g2) and its walk DP
+	public static long implicitFootprint(Graph g1, Graph g2)
+	{
+		long n1 = g1.getSize();
+		long n2 = g2.getSize();
+		long e = 2 * ((long)g1.getEdgeCount() + g2.getEdgeCount());
+
+		return n1*n2*(1 + 8*4) + e*8;
+	}
+
+	// product graph nodes of (g1,g2), i.e. pairs of nodes of the same label
+	private static long nodes(Graph g1, Graph g2)
+	{
+		long nc = 0;
+		for (Map.Entry<String,Integer> e : g1.getFormula().entrySet())
+		{
+			Integer c = g2.getFormula().get(e.getKey());
+			if (c != null)
+				nc += (long)e.getValue() * c;
+		}
+		return nc;
+	}
+
+	// product graph edges of (g1,g2), by the mean degrees of the graphs
+	private static long edges(Graph g1, Graph g2, long nc)
+	{
+		if (g1.getSize() == 0 || g2.getSize() == 0)
+			return 0;
+
+		double d1 = 2.0 * g1.getEdgeCount() / g1.getSize();
+		double d2 = 2.0 * g2.getEdgeCount() / g2.getSize();
+		return (long)Math.ceil(nc * d1 * d2 / 2);
+	}
+
+	public boolean fits(long bytes)
+	{
+		return bytes <= budget;
+	}
+
+	// waits until 'bytes' fit next to the pairs in flight, a pair larger than the budget waits for all of them
+	public synchronized void acquire(long bytes)
+	{
+		bytes = Math.min(bytes, budget);
+
+		boolean waited = false;
+		while (inuse > 0 && inuse + bytes > budget)
+		{
+			waited = true;
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if (waited)
+			held++;
+		inuse += bytes;
+	}
+
+	public synchronized void release(long bytes)
+	{
+		inuse -= Math.min(bytes, budget);
+		notifyAll();
+	}
+
+	public synchronized void fallback()
+	{
+		fallbacks++;
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	// pairs that waited for memory
+	public synchronized int getHeld()
+	{
+		return held;
+	}
+
+	// pairs computed on the implicit graph as they don't fit at all
+	public synchronized int getFallbacks()
+	{
+		return fallbacks;
+	}
+}
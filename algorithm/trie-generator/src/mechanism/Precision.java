@@ -0,0 +1,21 @@
+package mechanism;
+
+public enum Precision
+{
+	FLOAT64, // double, the default
+	FLOAT32, // float
+	FLOAT16, // IEEE half precision, finite values up to 65504
+	INT8; // 8 bits per cell, scaled per row
+	
+	public int bytes()
+	{
+		if (this == FLOAT32)
+			return 4;
+		if (this == FLOAT16)
+			return 2;
+		if (this == INT8)
+			return 1;
+		
+		return 8;
+	}
+}
@@ -0,0 +1,126 @@
+package mechanism;
+
+import java.util.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Product graphs of graph pairs, each built once and shared by all kernels
+ * computed over the same pairs, e.g. a parameter sweep or several kernels
+ * computed together (pairs are then dropped once done with remove())
+ *
+ * Both the array and the object product graphs are read-only once built. The
+ * implicit Kronecker graph has scratch vectors and is thus never shared.
+ * Graphs are looked up by identity as in DiffusionCache, and the key includes
+ * the parameters the product graph depends on (reduced, nodematch, edgematch).
+ *
+ * Safe to use from several threads, a product graph is built outside of the
+ * lock, thus two threads may occasionally build the same one.
+ */
+public class ProductGraphCache
+{
+	private Map<PairKey,Object> cache;
+	private int built;
+
+	public ProductGraphCache()
+	{
+		cache = new HashMap<PairKey,Object>();
+	}
+
+	public CSRProductGraph getCSR(Graph g1, Graph g2, KernelParams params)
+	{
+		PairKey key = new PairKey(g1, g2, "csr", params);
+
+		CSRProductGraph pg = (CSRProductGraph)get(key);
+		if (pg == null)
+		{
+			pg = new CSRProductGraph(g1, g2, params);
+			pg = (CSRProductGraph)put(key, pg);
+		}
+
+		return pg;
+	}
+
+	public ProductGraph getProductGraph(Graph g1, Graph g2, KernelParams params)
+	{
+		PairKey key = new PairKey(g1, g2, "pg", params);
+
+		ProductGraph pg = (ProductGraph)get(key);
+		if (pg == null)
+		{
+			if (params.reduced)
+				pg = new ReducedProductGraph(g1, g2, params);
+			else
+				pg = new ProductGraph(g1, g2, params);
+			pg = (ProductGraph)put(key, pg);
+		}
+
+		return pg;
+	}
+
+	// drops all product graphs of the pair (g1,g2)
+	public synchronized void remove(Graph g1, Graph g2)
+	{
+		Iterator<PairKey> it = cache.keySet().iterator();
+		while (it.hasNext())
+		{
+			PairKey key = it.next();
+			if (key.g1 == g1 && key.g2 == g2)
+				it.remove();
+		}
+	}
+
+	// number of product graphs built, including the duplicates of concurrent threads
+	public synchronized int getBuilt()
+	{
+		return built;
+	}
+
+	public synchronized int size()
+	{
+		return cache.size();
+	}
+
+	private synchronized Object get(PairKey key)
+	{
+		return cache.get(key);
+	}
+
+	// returns the cached product graph, which is 'pg' unless another thread was first
+	private synchronized Object put(PairKey key, Object pg)
+	{
+		built++;
+
+		if (!cache.containsKey(key))
+			cache.put(key, pg);
+
+		return cache.get(key);
+	}
+
+	private static class PairKey
+	{
+		private Graph g1, g2;
+		private String type;
+
+		public PairKey(Graph g1, Graph g2, String kind, KernelParams params)
+		{
+			this.g1 = g1;
+			this.g2 = g2;
+			this.type = kind + "/" + params.reduced + "/" + params.nodematch + "/" + params.edgematch;
+		}
+
+		public int hashCode()
+		{
+			return 31 * (31 * System.identityHashCode(g1) + System.identityHashCode(g2)) + type.hashCode();
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof PairKey))
+				return false;
+
+			PairKey key = (PairKey)other;
+			return key.g1 == g1 && key.g2 == g2 && key.type.equals(type);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package mechanism;
+
+/*
+ * Lower triangle with 8 bits per cell, scaled per row
+ *
+ * The cells of row 'i' are stored as lo + q*step, q = 0..255, where lo and step come
+ * from the smallest and largest value of the row. The scale is only known once the
+ * row is complete, thus cells are collected into a pending double row until
+ * finish(i), which quantizes the row and drops the pending one.
+ */
+public class QuantizedTriangle extends ReducedTriangle
+{
+	private byte[][] rows;
+	private double[] lo, step;
+	private double[][] pending;
+	
+	public QuantizedTriangle(int start, int end)
+	{
+		super(start, end);
+		
+		rows = new byte[end-start+1][];
+		for (int i = start-1; i < end; i++)
+			rows[i-start+1] = new byte[i];
+		lo = new double[end-start+1];
+		step = new double[end-start+1];
+		pending = new double[end-start+1][];
+	}
+	
+	protected double load(int i, int j)
+	{
+		double[] p = pending[i-start+1];
+		if (p != null)
+			return p[j];
+		return lo[i-start+1] + (rows[i-start+1][j] & 0xff) * step[i-start+1];
+	}
+	
+	protected void store(int i, int j, double value)
+	{
+		double[] p = pending[i-start+1];
+		if (p == null)
+		{
+			synchronized (this)
+			{
+				if (pending[i-start+1] == null)
+					pending[i-start+1] = new double[i];
+				p = pending[i-start+1];
+			}
+		}
+		p[j] = value;
+	}
+	
+	public void finish(int i)
+	{
+		double[] p = pending[i-start+1];
+		if (p == null)
+			return;
+		
+		double[] scale = scale(p);
+		lo[i-start+1] = scale[0];
+		step[i-start+1] = scale[1];
+		
+		byte[] row = rows[i-start+1];
+		for (int j = 0; j < p.length; j++)
+			row[j] = quantize(p[j], scale[0], scale[1]);
+		
+		pending[i-start+1] = null;
+	}
+	
+	public Precision getPrecision()
+	{
+		return Precision.INT8;
+	}
+	
+	// {lo, step} of the values, non-finite values are left out of the range
+	public static double[] scale(double[] values)
+	{
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (double v : values)
+		{
+			if (Double.isInfinite(v) || Double.isNaN(v))
+				continue;
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		
+		if (min > max)
+			return new double[] {0.0, 0.0};
+		return new double[] {min, (max - min) / 255};
+	}
+	
+	public static byte quantize(double value, double lo, double step)
+	{
+		if (step == 0.0 || Double.isNaN(value))
+			return 0;
+		
+		long q = Math.round((value - lo) / step);
+		return (byte)Math.max(0, Math.min(255, q));
+	}
+}
@@ -0,0 +1,52 @@
+package mechanism;
+
+/*
+ * Lower triangle stored with less than double precision
+ *
+ * The diagonal is kept exactly, e.g. for normalization, the other cells are stored
+ * by the subclasses.
+ */
+public abstract class ReducedTriangle extends Triangle
+{
+	protected double[] diag;
+	
+	public ReducedTriangle(int start, int end)
+	{
+		this.start = start;
+		this.end = end;
+		diag = new double[end-start+1];
+	}
+	
+	// cell [i,j] with j < i
+	protected abstract double load(int i, int j);
+	protected abstract void store(int i, int j, double value);
+	
+	public abstract Precision getPrecision();
+	
+	public double get(int i, int j)
+	{
+		if (i == j)
+			return diag[i-start+1];
+		return load(i, j);
+	}
+	
+	public void set(int i, int j, double value)
+	{
+		if (i == j)
+			diag[i-start+1] = value;
+		else
+			store(i, j, value);
+	}
+	
+	public static ReducedTriangle create(Precision precision, int start, int end)
+	{
+		if (precision == Precision.FLOAT32)
+			return new FloatTriangle(start, end);
+		if (precision == Precision.FLOAT16)
+			return new HalfTriangle(start, end);
+		if (precision == Precision.INT8)
+			return new QuantizedTriangle(start, end);
+		
+		throw new IllegalArgumentException("No reduced storage for " + precision);
+	}
+}
@@ -0,0 +1,152 @@
+package mechanism;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only journal of the completed rows of a kernel matrix
+ *
+ * The first line holds the parameter string and the storage precision of the kernel,
+ * and each following line one completed row 'i' (in graph indices) with the crc32 of
+ * its values:
+ *
+ *   row <i> <crc32> <v_0> ... <v_i>
+ *
+ * Values are written with Double.toString(), which reads back exactly. A restarted
+ * job loads the valid rows and only computes the others. A row cut short by a
+ * crash fails its checksum and is truncated away before new rows are appended.
+ */
+public class RowJournal
+{
+	private String filename;
+	private String header;
+	private BufferedWriter out;
+
+	public RowJournal(String filename, String header)
+	{
+		this.filename = filename;
+		this.header = header;
+	}
+
+	/*
+	 * Reads the rows of an existing journal into 'matrix' and opens the journal
+	 * for appending. Returns the graph indices of the rows read.
+	 */
+	public synchronized BitSet open(Triangle matrix) throws IOException
+	{
+		BitSet rows = new BitSet();
+		File f = new File(filename);
+		long valid = 0;
+
+		if (f.exists())
+		{
+			BufferedReader in = new BufferedReader(new FileReader(f));
+			String line = in.readLine();
+
+			if (line == null || !line.equals(header))
+			{
+				in.close();
+				throw new IOException("Journal " + filename + " belongs to another kernel or precision (" + line + "), expected " + header);
+			}
+			valid = line.length() + 1;
+
+			while ((line = in.readLine()) != null)
+			{
+				int i = parse(line, matrix);
+				if (i < 0)
+					break;
+
+				rows.set(i);
+				valid += line.length() + 1;
+			}
+			in.close();
+
+			// drop a partially written last row
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			if (raf.length() > valid)
+				raf.setLength(valid);
+			raf.close();
+
+			out = new BufferedWriter(new FileWriter(f, true));
+		}
+		else
+		{
+			out = new BufferedWriter(new FileWriter(f));
+			out.write(header);
+			out.newLine();
+			out.flush();
+		}
+
+		return rows;
+	}
+
+	// appends row 'i' and flushes it to the file
+	public synchronized void append(int i, double[] row) throws IOException
+	{
+		String values = values(row);
+		out.write("row " + i + " " + checksum(values) + " " + values);
+		out.newLine();
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (out != null)
+			out.close();
+		out = null;
+	}
+
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	// stores the row of 'line' into 'matrix', returns the row index or -1 if the line is invalid
+	private int parse(String line, Triangle matrix)
+	{
+		String[] parts = line.split(" ", 4);
+		if (parts.length < 4 || !parts[0].equals("row"))
+			return -1;
+
+		try
+		{
+			int i = Integer.parseInt(parts[1]);
+			if (!parts[2].equals(checksum(parts[3])) || i < matrix.getStart()-1 || i >= matrix.getEnd())
+				return -1;
+
+			String[] vals = parts[3].split("\t");
+			if (vals.length != i+1)
+				return -1;
+
+			for (int j = 0; j < vals.length; j++)
+				matrix.set(i, j, Double.parseDouble(vals[j]));
+			matrix.finish(i);
+
+			return i;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private static String values(double[] row)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < row.length; j++)
+		{
+			if (j > 0)
+				sb.append('\t');
+			sb.append(Double.toString(row[j]));
+		}
+		return sb.toString();
+	}
+
+	private static String checksum(String s)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(s.getBytes());
+		return Long.toHexString(crc.getValue());
+	}
+}
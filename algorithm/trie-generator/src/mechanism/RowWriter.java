@@ -0,0 +1,104 @@
+package mechanism;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.*;
+
+/*
+ * Writes the rows of a kernel matrix in order, each as soon as it is done
+ *
+ * Rows finished out of order (tiled mode) are held until all rows before them are
+ * written. The format is the one of Kernel.writeToFile(), or one of the packed
+ * formats of MatrixIO. With normalization the cells are divided by the square roots
+ * of the diagonal values, which are known for all rows written so far.
+ */
+public class RowWriter
+{
+	private BufferedWriter out;
+	private MatrixIO.PackedWriter packed;
+	private DecimalFormat df = new DecimalFormat("0.#####E0", new DecimalFormatSymbols(Locale.US));
+	private double[] diagonal;
+	private boolean normalize;
+	private int next;
+	private Map<Integer,double[]> pending = new HashMap<Integer,double[]>();
+
+	// rows start..end (graph indices start-1..end-1) in text
+	public RowWriter(String filename, int start, double[] diagonal, boolean normalize) throws IOException
+	{
+		this.diagonal = diagonal;
+		this.normalize = normalize;
+		next = start-1;
+
+		out = new BufferedWriter(new FileWriter(filename));
+	}
+
+	// rows start..end in a packed format, with the header of MatrixIO.write()
+	public RowWriter(String filename, MatrixFormat format, int start, int end, double[] diagonal, boolean normalize, String params, String[] ids) throws IOException
+	{
+		this.diagonal = diagonal;
+		this.normalize = normalize;
+		next = start-1;
+
+		packed = new MatrixIO.PackedWriter(format, filename, start, end, params, ids);
+	}
+
+	public synchronized void write(int i, double[] row) throws IOException
+	{
+		pending.put(i, row);
+
+		while (pending.containsKey(next))
+		{
+			row = pending.remove(next);
+			if (normalize)
+			{
+				double[] raw = row;
+				row = new double[raw.length];
+				for (int j = 0; j < row.length; j++)
+				{
+					if (Math.sqrt(diagonal[next]*diagonal[j]) != 0.0)
+						row[j] = raw[j] / Math.sqrt( diagonal[next] * diagonal[j] );
+					else
+						row[j] = 0.0;
+				}
+			}
+
+			if (packed != null)
+			{
+				packed.write(next, row);
+				next++;
+				continue;
+			}
+
+			for (int j = 0; j < row.length; j++)
+			{
+				double value = row[j];
+				if (Double.isInfinite(value))
+					out.write("Inf");
+				else if (Double.isNaN(value))
+					out.write("NaN");
+				else
+					out.write(df.format(value));
+
+				out.write("\t");
+			}
+
+			out.newLine();
+			next++;
+		}
+
+		if (out != null)
+			out.flush();
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (!pending.isEmpty())
+			System.out.println("Error: " + pending.size() + " rows after row " + (next+1) + " not written");
+
+		if (packed != null)
+			packed.close();
+		else
+			out.close();
+	}
+}
@@ -0,0 +1,117 @@
+package mechanism;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.*;
+
+import mechanism.graphs.*;
+
+/*
+ * Splits the rows of a kernel matrix into shards of equal estimated cost
+ *
+ * Cells are costed by CostModel, i.e. by the predicted size of their product graph.
+ * Row 'i' has i+1 cells, thus equal row ranges are far from equal in cost. The shards
+ * are consecutive row ranges, run with --start/--end.
+ */
+public class ShardPlanner
+{
+	private double[] rowcost;
+	private double total;
+
+	public ShardPlanner(Graph[] graphs)
+	{
+		CostModel costs = new CostModel(graphs);
+
+		rowcost = new double[graphs.length];
+		for (int i = 0; i < graphs.length; i++)
+		{
+			rowcost[i] = costs.rowCost(i);
+			total += rowcost[i];
+		}
+	}
+
+	// estimated cost of rows start..end
+	public double cost(int start, int end)
+	{
+		double c = 0.0;
+		for (int i = start-1; i < end; i++)
+			c += rowcost[i];
+		return c;
+	}
+
+	public double getTotalCost()
+	{
+		return total;
+	}
+
+	// {start, end} of at most 'n' shards, each shard has at least one row
+	public int[][] plan(int n)
+	{
+		n = Math.max(1, Math.min(n, rowcost.length));
+		int[][] shards = new int[n][2];
+
+		int start = 1;
+		double done = 0.0;
+		for (int s = 0; s < n; s++)
+		{
+			// the shard ends where the cumulative cost is closest to its share
+			double target = total * (s+1) / n;
+			int end = start;
+			done += rowcost[end-1];
+			while (end < rowcost.length - (n-s-1) && Math.abs(done + rowcost[end] - target) < Math.abs(done - target))
+			{
+				done += rowcost[end];
+				end++;
+			}
+			if (s == n-1)
+				end = rowcost.length;
+
+			shards[s][0] = start;
+			shards[s][1] = end;
+			start = end + 1;
+		}
+
+		return shards;
+	}
+
+	// {start, end} of the shards of a plan file
+	public static int[][] read(String filename) throws IOException
+	{
+		List<int[]> shards = new ArrayList<int[]>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			if (line.startsWith("#") || line.trim().length() == 0)
+				continue;
+
+			String[] parts = line.trim().split(" ");
+			shards.add(new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])});
+		}
+		in.close();
+
+		return shards.toArray(new int[shards.size()][]);
+	}
+
+	/*
+	 * Writes the plan, one shard per line:
+	 *
+	 *   <start> <end> <estimated cost> <share of the total>
+	 */
+	public void write(String filename, int[][] shards) throws IOException
+	{
+		DecimalFormat df = new DecimalFormat("0.0%", new DecimalFormatSymbols(Locale.US));
+		BufferedWriter out = new BufferedWriter(new FileWriter(filename));
+
+		out.write("# start end cost share");
+		out.newLine();
+		for (int[] s : shards)
+		{
+			double c = cost(s[0], s[1]);
+			out.write(s[0] + " " + s[1] + " " + (long)c + " " + df.format(c / total));
+			out.newLine();
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,97 @@
+package mechanism;
+
+/*
+ * Lower triangle rows start..end of a kernel matrix, cells [i,j] in graph indices (j <= i)
+ */
+public abstract class Triangle
+{
+	protected int start, end;
+	
+	public abstract double get(int i, int j);
+	public abstract void set(int i, int j, double value);
+	
+	public int getStart()
+	{
+		return start;
+	}
+	
+	public int getEnd()
+	{
+		return end;
+	}
+	
+	// row 'i' is complete, e.g. for storage that packs whole rows
+	public void finish(int i)
+	{
+	}
+	
+	// sets and finishes row 'i'
+	public void setRow(int i, double[] row)
+	{
+		for (int j = 0; j <= i; j++)
+			set(i, j, row[j]);
+		finish(i);
+	}
+	
+	// copy of row 'i'
+	public double[] getRow(int i)
+	{
+		double[] row = new double[i+1];
+		for (int j = 0; j <= i; j++)
+			row[j] = get(i, j);
+		return row;
+	}
+	
+	// divides the cells by the square roots of their diagonal values in place, the rows
+	// must start at 1, returns the diagonal before
+	public double[] normalize()
+	{
+		if (start != 1)
+			throw new IllegalStateException("Rows " + start + ".." + end + " can't be normalized without the diagonal of rows 1.." + (start-1));
+		
+		double[] diag = new double[end];
+		for (int i = 0; i < end; i++)
+			diag[i] = get(i, i);
+		
+		for (int i = 0; i < end; i++)
+		{
+			double[] row = getRow(i);
+			for (int j = 0; j <= i; j++)
+				if (Math.sqrt(diag[i]*diag[j]) != 0.0)
+					row[j] = row[j] / Math.sqrt( diag[i] * diag[j] );
+				else
+					row[j] = 0.0;
+			setRow(i, row);
+		}
+		
+		return diag;
+	}
+	
+	// the jagged rows of Kernel.matrix, row 'i' being rows[i-start+1]
+	public static Triangle wrap(double[][] rows, int start, int end)
+	{
+		return new Heap(rows, start, end);
+	}
+	
+	private static class Heap extends Triangle
+	{
+		private double[][] rows;
+		
+		public Heap(double[][] rows, int start, int end)
+		{
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+		}
+		
+		public double get(int i, int j)
+		{
+			return rows[i-start+1][j];
+		}
+		
+		public void set(int i, int j, double value)
+		{
+			rows[i-start+1][j] = value;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package mechanism.graphs;
+
+import java.util.*;
+
+import mechanism.KernelParams;
+
+/*
+ * Direct product graph (g1 X g2) stored in primitive arrays only
+ *
+ * Same nodes and edges as in ProductGraph (or ReducedProductGraph), but without
+ * any PGNode/PGEdge objects or hash containers:
+ *
+ *  node1[i], node2[i]       ids of the g1 and g2 nodes of pg-node 'i'
+ *  offsets[i]..offsets[i+1] CSR slots of the neighbors of 'i'
+ *  neighs[s]                neighbor pg-node at slot 's'
+ *  dirs[s]                  directed edge id of (i -> neighs[s]), which is the
+ *                           edge id 'e' if i < neighs[s] and e + ec otherwise
+ *
+ * Neighbors are sorted by id inside each node. Edge ids follow the (i,j), i<j order
+ * of ProductGraph, thus the directed ids match the message indices of the
+ * non-tottering DPs.
+ */
+public class CSRProductGraph
+{
+	protected Graph g1, g2;
+	protected KernelParams params;
+
+	// node/edge counts
+	public int nc;
+	public int ec;
+
+	public int[] node1;
+	public int[] node2;
+	public int[] offsets;
+	public int[] neighs;
+	public int[] dirs;
+
+
+	public CSRProductGraph(Graph g1, Graph g2, KernelParams params)
+	{
+		this(g1, g2, params, true, params.reduced);
+	}
+
+	public CSRProductGraph(Graph g1, Graph g2, KernelParams params, boolean nodematch, boolean reduced)
+	{
+		this.g1 = g1;
+		this.g2 = g2;
+		this.params = params;
+
+		createNodes(nodematch, reduced);
+		createEdges();
+	}
+
+	protected void createNodes(boolean nodematch, boolean reduced)
+	{
+		Node[] g1nodes = g1.getNodes();
+		Node[] g2nodes = g2.getNodes();
+
+		// blocks of g2 nodes by label, all g2 nodes form a single block without nodematching
+		Map<String,int[]> blocks = new HashMap<String,int[]>();
+		if (nodematch)
+		{
+			Map<String,Integer> counts = new HashMap<String,Integer>();
+			for (Node b : g2nodes)
+				counts.put(b.getSymbol(), counts.containsKey(b.getSymbol()) ? counts.get(b.getSymbol()) + 1 : 1);
+			for (String s : counts.keySet())
+				blocks.put(s, new int[counts.get(s)]);
+
+			Map<String,Integer> ptrs = new HashMap<String,Integer>();
+			for (Node b : g2nodes)
+			{
+				int ptr = ptrs.containsKey(b.getSymbol()) ? ptrs.get(b.getSymbol()) : 0;
+				blocks.get(b.getSymbol())[ptr] = b.getId();
+				ptrs.put(b.getSymbol(), ptr+1);
+			}
+		}
+
+		int[] all = new int[g2nodes.length];
+		for (int j = 0; j < g2nodes.length; j++)
+			all[j] = g2nodes[j].getId();
+
+		// count first, then fill
+		nc = 0;
+		for (int pass = 0; pass < 2; pass++)
+		{
+			int index = 0;
+			for (Node a : g1nodes)
+			{
+				int[] block = nodematch ? blocks.get(a.getSymbol()) : all;
+				if (block == null)
+					continue;
+
+				for (int bid : block)
+				{
+					Node b = g2nodes[bid];
+
+					if (!match(a, b) || (reduced && !reducedvalid(a, b)))
+						continue;
+
+					if (pass == 1)
+					{
+						node1[index] = a.getId();
+						node2[index] = b.getId();
+					}
+					index++;
+				}
+			}
+
+			if (pass == 0)
+			{
+				nc = index;
+				node1 = new int[nc];
+				node2 = new int[nc];
+			}
+		}
+	}
+
+	protected void createEdges()
+	{
+		Node[] g1nodes = g1.getNodes();
+		Node[] g2nodes = g2.getNodes();
+
+		// index from (g1 node, g2 node) to the pg-node id, -1 if no such pg-node
+		int n2 = g2.getSize();
+		int[] index = new int[g1.getSize() * n2];
+		Arrays.fill(index, -1);
+		for (int i = 0; i < nc; i++)
+			index[node1[i] * n2 + node2[i]] = i;
+
+		// neighbors of all nodes, both directions
+		offsets = new int[nc+1];
+		neighs = new int[16];
+
+		int slots = 0;
+		for (int i = 0; i < nc; i++)
+		{
+			Node a1 = g1nodes[node1[i]];
+			Node a2 = g2nodes[node2[i]];
+
+			for (Edge e1 : a1.getEdgeNeighbors())
+			{
+				Node n1 = e1.getOther(a1);
+
+				for (Edge e2 : a2.getEdgeNeighbors())
+				{
+					int j = index[n1.getId() * n2 + e2.getOther(a2).getId()];
+
+					if (j >= 0 && match(e1, e2))
+					{
+						if (slots == neighs.length)
+							neighs = Arrays.copyOf(neighs, 2*slots);
+						neighs[slots++] = j;
+					}
+				}
+			}
+
+			offsets[i+1] = slots;
+			Arrays.sort(neighs, offsets[i], slots);
+		}
+
+		neighs = Arrays.copyOf(neighs, slots);
+		ec = slots / 2;
+
+		// edge ids in (i,j), i<j order
+		dirs = new int[slots];
+		int id = 0;
+		for (int i = 0; i < nc; i++)
+		{
+			for (int s = offsets[i]; s < offsets[i+1]; s++)
+			{
+				int j = neighs[s];
+				if (j > i)
+					dirs[s] = id++;
+				else // reverse direction of the edge (j,i) created earlier
+					dirs[s] = dirs[slot(j,i)] + ec;
+			}
+		}
+	}
+
+	// slot of the neighbor 'j' of 'i', or -1
+	public int slot(int i, int j)
+	{
+		int s = Arrays.binarySearch(neighs, offsets[i], offsets[i+1], j);
+		return s >= 0 ? s : -1;
+	}
+
+	// the opposite direction of a directed edge
+	public int reverse(int d)
+	{
+		return d < ec ? d + ec : d - ec;
+	}
+
+	public Graph getG1()
+	{
+		return g1;
+	}
+
+	public Graph getG2()
+	{
+		return g2;
+	}
+
+	public int getNodeCount()
+	{
+		return nc;
+	}
+
+	public int getEdgeCount()
+	{
+		return ec;
+	}
+
+	protected boolean match(Edge b1, Edge b2)
+	{
+		if (params.edgematch)
+			return b1.getType() == b2.getType() && b1.getChangetype() == b2.getChangetype();
+
+		return b1.getChangetype() == b2.getChangetype();
+	}
+
+	protected boolean match(Node a1, Node a2)
+	{
+		if (params.nodematch)
+			return a1.getSymbol().equals(a2.getSymbol());
+
+		return true;
+	}
+
+	// reduced product graphs don't have NC pairings (non-core/core)
+	protected boolean reducedvalid(Node a1, Node a2)
+	{
+		return !((a1.getCoreDist() == 0 || a2.getCoreDist() == 0) && (a1.getCoreDist() != a2.getCoreDist()));
+	}
+
+	public String toString()
+	{
+		return g1 + "<->" + g2;
+	}
+
+	/*
+	 * The walk computation routines, same as in ProductGraph
+	 * D_ij corresponds to walks of length 'j' ending at node 'i'
+	 */
+
+	// compute number common walks upto 'maxlength'
+	public long computeWalkCounts(int maxlength)
+	{
+		long sum = 0;
+		for (long c : computeWalkCountArray(maxlength))
+			sum += c;
+		return sum;
+	}
+
+	public long[] computeWalkCountArray(int maxlength)
+	{
+		// only two levels of the DP are needed at a time
+		long[] prev = new long[nc];
+		long[] curr = new long[nc];
+		long[] counts = new long[maxlength+1];
+
+		// initialize
+		Arrays.fill(prev, 1);
+		counts[1] = nc;
+
+		for (int l = 2; l < maxlength+1; l++)
+		{
+			for (int i = 0; i < nc; i++)
+			{
+				long val = 0;
+				for (int s = offsets[i]; s < offsets[i+1]; s++)
+					val += prev[neighs[s]];
+
+				curr[i] = val;
+				counts[l] += val;
+			}
+
+			long[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+
+		return counts;
+	}
+
+	// compute the weighted sum of common walks upto 'maxlength'
+	// or until convergence if lambda is sufficiently small
+	public double computeWalkScore(int maxlength)
+	{
+		double[] w = new double[nc];
+		double[] prev = new double[nc];
+		double[] curr = new double[nc];
+		double sum = 0.0;
+
+		// initialize
+		for (int i = 0; i < nc; i++)
+		{
+			w[i] = logistic(g1.getNodes()[node1[i]].getCoreDist()) * logistic(g2.getNodes()[node2[i]].getCoreDist());
+			prev[i] = w[i];
+			sum += prev[i];
+		}
+
+		double oldsum = 0.0;
+		for (int l = 2; l < maxlength + 1; l++)
+		{
+			oldsum = sum;
+			for (int i = 0; i < nc; i++)
+			{
+				double val = 0.0;
+				for (int s = offsets[i]; s < offsets[i+1]; s++)
+					val += prev[neighs[s]];
+
+				curr[i] = w[i] * (1.0 - params.lambda) * (1.0 - params.lambda) * val;
+				sum += curr[i];
+			}
+
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < 0.00001)
+				break;
+		}
+
+		return sum;
+	}
+
+	private double logistic(double x)
+	{
+		return 1.0 / (1.0 + Math.exp(params.beta * (x - 0.5))); // use logistic function instead of gaussian
+	}
+}
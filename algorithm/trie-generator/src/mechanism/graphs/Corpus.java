@@ -0,0 +1,336 @@
+package mechanism.graphs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Packed binary corpus of reaction graphs, memory-mapped when read
+ *
+ * The graphs are stored as they are after computeDistances(), thus a graph of the
+ * corpus equals the graph of its mol file with the core distances computed. The file
+ * is little-endian:
+ *
+ *   "GRPH", int version, int count, long offset of the index
+ *   int labels, the node labels (int length + UTF-8 each)
+ *   graphs, each:
+ *     file, ligand (null is length -1), int direction, int mapnum
+ *     ec codes, reactant ligands, product ligands (int count + strings each)
+ *     int nodes, int edges
+ *     nodes x (int label, int coredist)
+ *     edges x (int source, int target, int type, int change, int oldtype, int newtype)
+ *     int[nodes+1] offsets and int[2*edges] edge ids of the neighborhoods
+ *   index, long offset of each graph
+ *
+ * Neighborhoods keep the order of the neighbor maps of the nodes, which is the order
+ * the walks visit them in. The mapping is read-only and shared by all JVMs reading
+ * the same file, graphs are built from it on demand without parsing.
+ */
+public class Corpus
+{
+	private static final int VERSION = 1;
+
+	private ByteBuffer data;
+	private int count;
+	private long index;
+	private String[] labels;
+
+	public Corpus(String filename) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		FileChannel ch = raf.getChannel();
+		if (ch.size() > Integer.MAX_VALUE)
+		{
+			raf.close();
+			throw new IOException("Corpus " + filename + " is larger than 2 GB");
+		}
+		data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+		raf.close(); // the mapping stays valid
+
+		if (!isCorpus(data))
+			throw new IOException("Not a graph corpus: " + filename);
+		if (data.getInt(4) != VERSION)
+			throw new IOException("Corpus " + filename + " has version " + data.getInt(4) + ", expected " + VERSION);
+
+		count = data.getInt(8);
+		index = data.getLong(12);
+
+		ByteBuffer in = view(20);
+		labels = new String[in.getInt()];
+		for (int l = 0; l < labels.length; l++)
+			labels[l] = string(in).intern();
+	}
+
+	// true if the file starts as a corpus
+	public static boolean isCorpus(String filename)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(filename));
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			in.close();
+			return isCorpus(ByteBuffer.wrap(magic));
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private static boolean isCorpus(ByteBuffer b)
+	{
+		return b.get(0) == 'G' && b.get(1) == 'R' && b.get(2) == 'P' && b.get(3) == 'H';
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	// mol files the graphs were read from
+	public List<String> getFiles()
+	{
+		List<String> files = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			files.add(string(view(offset(i))));
+		return files;
+	}
+
+	// graph 'i' with index 'i', safe to call from several threads
+	public ReactionGraph graph(int i)
+	{
+		ByteBuffer in = view(offset(i));
+
+		string(in); // file
+		String ligand = string(in);
+		int direction = in.getInt();
+		int mapnum = in.getInt();
+		List<String> ec = strings(in);
+		List<String> reactants = strings(in);
+		List<String> products = strings(in);
+
+		ReactionGraph g = new ReactionGraph(ligand, direction, mapnum, ec, reactants, products);
+		g.formula = new HashMap<String,Integer>();
+
+		int nc = in.getInt();
+		int ec2 = in.getInt();
+
+		g.nodes = new Node[nc];
+		for (int a = 0; a < nc; a++)
+		{
+			String symbol = labels[in.getInt()];
+			Node n = new Atom(g, a, symbol);
+			n.coredist = in.getInt();
+			g.nodes[a] = n;
+
+			if (g.formula.containsKey(symbol))
+				g.formula.put(symbol, g.formula.get(symbol) + 1);
+			else
+				g.formula.put(symbol, 1);
+		}
+
+		g.edges = new Edge[ec2];
+		for (int e = 0; e < ec2; e++)
+		{
+			Atom src = (Atom)g.nodes[in.getInt()];
+			Atom tgt = (Atom)g.nodes[in.getInt()];
+			g.edges[e] = new Bond(e, src, tgt, in.getInt(), in.getInt(), in.getInt(), in.getInt(), g);
+		}
+
+		// neighborhoods in their stored order
+		int start = in.position();
+		int ids = start + 4*(nc+1);
+		for (int a = 0; a < nc; a++)
+		{
+			Node n = g.nodes[a];
+			n.nodeneighs.clear();
+			n.edgeneighs.clear();
+
+			for (int s = in.getInt(start + 4*a); s < in.getInt(start + 4*(a+1)); s++)
+			{
+				Edge e = g.edges[in.getInt(ids + 4*s)];
+				n.edgeneighs.put(e.getOther(n), e);
+				n.nodeneighs.add(e.getOther(n));
+			}
+		}
+
+		g.setIndex(i);
+		return g;
+	}
+
+	private int offset(int i)
+	{
+		return (int)data.getLong((int)index + 8*i);
+	}
+
+	private ByteBuffer view(int position)
+	{
+		ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		in.position(position);
+		return in;
+	}
+
+	private static String string(ByteBuffer in)
+	{
+		int len = in.getInt();
+		if (len < 0)
+			return null;
+
+		byte[] b = new byte[len];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static List<String> strings(ByteBuffer in)
+	{
+		int n = in.getInt();
+		List<String> list = new ArrayList<String>(n);
+		for (int k = 0; k < n; k++)
+			list.add(string(in));
+		return list;
+	}
+
+	/*
+	 * Writes the reaction graphs, read from 'files', into a corpus file. The core
+	 * distances of the graphs must be computed.
+	 */
+	public static void write(String filename, List<String> files, Graph[] graphs) throws IOException
+	{
+		Map<String,Integer> labels = new LinkedHashMap<String,Integer>();
+		for (Graph g : graphs)
+			for (Node n : g.getNodes())
+				if (!labels.containsKey(n.getSymbol()))
+					labels.put(n.getSymbol(), labels.size());
+
+		RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+		raf.setLength(0);
+		FileChannel ch = raf.getChannel();
+
+		ByteBuffer b = buffer(1 << 16);
+		b.put(new byte[] {'G', 'R', 'P', 'H'});
+		b.putInt(VERSION);
+		b.putInt(graphs.length);
+		b.putLong(0); // index, patched at the end
+		b.putInt(labels.size());
+		for (String l : labels.keySet())
+			b = put(b, l);
+		flush(ch, b);
+
+		long[] offsets = new long[graphs.length];
+		for (int i = 0; i < graphs.length; i++)
+		{
+			ReactionGraph g = (ReactionGraph)graphs[i];
+			offsets[i] = ch.position();
+
+			b = put(b, files.get(i));
+			b = put(b, g.getLigand());
+			b = reserve(b, 8);
+			b.putInt(g.getDirection());
+			b.putInt(g.getMapNum());
+			b = put(b, g.getECCodes());
+			b = put(b, g.getReactantLigands());
+			b = put(b, g.getProductLigands());
+
+			Node[] nodes = g.getNodes();
+			Edge[] edges = g.getEdges();
+			b = reserve(b, 8 + 8*nodes.length + 24*edges.length + 4*(nodes.length+1) + 8*edges.length);
+			b.putInt(nodes.length);
+			b.putInt(edges.length);
+			for (Node n : nodes)
+			{
+				b.putInt(labels.get(n.getSymbol()));
+				b.putInt(n.getCoreDist());
+			}
+			for (Edge e : edges)
+			{
+				b.putInt(e.getSource().getId());
+				b.putInt(e.getTarget().getId());
+				b.putInt(e.getType());
+				b.putInt(e.getChangetype());
+				b.putInt(e.getOldtype());
+				b.putInt(e.getNewtype());
+			}
+
+			int s = 0;
+			b.putInt(0);
+			for (Node n : nodes)
+			{
+				s += n.getEdgeNeighbors().size();
+				b.putInt(s);
+			}
+			for (Node n : nodes)
+				for (Edge e : n.getEdgeNeighbors())
+					b.putInt(e.getId());
+
+			flush(ch, b);
+		}
+
+		long index = ch.position();
+		for (long o : offsets)
+		{
+			b = reserve(b, 8);
+			b.putLong(o);
+		}
+		flush(ch, b);
+
+		b.putLong(index);
+		b.flip();
+		ch.write(b, 12);
+
+		raf.close();
+	}
+
+	private static ByteBuffer buffer(int size)
+	{
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// 'b' or a larger copy of it with room for 'bytes' more
+	private static ByteBuffer reserve(ByteBuffer b, int bytes)
+	{
+		if (b.remaining() >= bytes)
+			return b;
+
+		ByteBuffer x = buffer(Math.max(2*b.capacity(), b.position() + bytes));
+		b.flip();
+		x.put(b);
+		return x;
+	}
+
+	private static ByteBuffer put(ByteBuffer b, String s)
+	{
+		if (s == null)
+		{
+			b = reserve(b, 4);
+			b.putInt(-1);
+			return b;
+		}
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		b = reserve(b, 4 + bytes.length);
+		b.putInt(bytes.length);
+		b.put(bytes);
+		return b;
+	}
+
+	private static ByteBuffer put(ByteBuffer b, List<String> list)
+	{
+		b = reserve(b, 4);
+		b.putInt(list.size());
+		for (String s : list)
+			b = put(b, s);
+		return b;
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer b) throws IOException
+	{
+		b.flip();
+		while (b.hasRemaining())
+			ch.write(b);
+		b.clear();
+	}
+}
@@ -1,6 +1,7 @@
 package mechanism.graphs;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mechanism.Isomorphism;
 
@@ -21,6 +22,11 @@ public abstract class Graph
 	protected Node[] nodes = null;
 	protected Edge[] edges = null;
 	
+	// per-node weights of weighting functions, keyed by the function and its parameters,
+	// of at most NODE_WEIGHT_KEYS keys, e.g. the kernels of a sweep or a query service
+	protected Map<String,double[]> nodeWeight = new ConcurrentHashMap<String,double[]>();
+	public static int NODE_WEIGHT_KEYS = 8;
+	
 	// empty constructor
 	public Graph()
 	{
@@ -138,6 +144,19 @@ public abstract class Graph
 		id = i;
 	}
 	
+	public double[] getNodeWeight(String key)
+	{
+		return nodeWeight.get(key);
+	}
+	
+	public void setNodeWeight(String key, double[] w)
+	{
+		// the weights of other parameters are dropped at once, they are recomputed if needed again
+		if (nodeWeight.size() >= NODE_WEIGHT_KEYS && !nodeWeight.containsKey(key))
+			nodeWeight.clear();
+		nodeWeight.put(key, w);
+	}
+	
 	public String getLigand()
 	{
 		return ligand;
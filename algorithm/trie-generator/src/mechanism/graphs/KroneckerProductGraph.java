@@ -0,0 +1,398 @@
+package mechanism.graphs;
+
+import java.util.*;
+
+import mechanism.KernelParams;
+
+/*
+ * Implicit direct product graph (g1 X g2), never materialized
+ *
+ * The adjacency of the product graph is the label-masked Kronecker product of the
+ * adjacencies of g1 and g2. Splitting the edges into classes by their matched label
+ * (change type, and bond type with edgematching) gives
+ *
+ *   A_pg = mask .* \sum_c A1_c (x) A2_c
+ *
+ * so a walk level can be computed with sparse matrix products on an n1 x n2 matrix
+ *
+ *   F_l = mask .* \sum_c A1_c F_{l-1} A2_c^T
+ *
+ * where mask(a,b) = 1 iff (a,b) is a node of the ProductGraph (or ReducedProductGraph).
+ * Only O(|V1||V2|) doubles are kept, there are no nodes or edges per pair.
+ *
+ * Matrices are stored row-major as F[a*n2 + b].
+ */
+public class KroneckerProductGraph
+{
+	protected Graph g1, g2;
+	protected KernelParams params;
+
+	public int n1, n2;
+	public boolean[] mask;
+
+	// edges of both graphs split into classes, neighbors of node 'a' in class 'c'
+	// are neighs1[c][offsets1[c][a]..offsets1[c][a+1]-1], similarly for g2
+	public int classes;
+	public int[][] offsets1, neighs1, offsets2, neighs2;
+	public int[][] rows1, rows2; // nodes with any edges in class 'c'
+
+	private double[] tmp;
+	private long[] ltmp;
+
+
+	public KroneckerProductGraph(Graph g1, Graph g2, KernelParams params)
+	{
+		this(g1, g2, params, true, params.reduced);
+	}
+
+	public KroneckerProductGraph(Graph g1, Graph g2, KernelParams params, boolean nodematch, boolean reduced)
+	{
+		this.g1 = g1;
+		this.g2 = g2;
+		this.params = params;
+
+		n1 = g1.getSize();
+		n2 = g2.getSize();
+
+		createMask(nodematch, reduced);
+		createClasses();
+	}
+
+	protected void createMask(boolean nodematch, boolean reduced)
+	{
+		Node[] g1nodes = g1.getNodes();
+		Node[] g2nodes = g2.getNodes();
+
+		mask = new boolean[n1*n2];
+		for (int a = 0; a < n1; a++)
+		{
+			for (int b = 0; b < n2; b++)
+			{
+				Node x = g1nodes[a];
+				Node y = g2nodes[b];
+
+				if (nodematch && !x.getSymbol().equals(y.getSymbol()))
+					continue;
+				if (!match(x, y) || (reduced && !reducedvalid(x, y)))
+					continue;
+
+				mask[a*n2 + b] = true;
+			}
+		}
+	}
+
+	protected void createClasses()
+	{
+		// edge classes present in both graphs, others can't form product edges
+		Set<String> labels1 = new HashSet<String>();
+		for (Edge e : g1.getEdges())
+			labels1.add(label(e));
+
+		Map<String,Integer> ids = new HashMap<String,Integer>();
+		for (Edge e : g2.getEdges())
+			if (labels1.contains(label(e)) && !ids.containsKey(label(e)))
+				ids.put(label(e), ids.size());
+
+		classes = ids.size();
+		offsets1 = new int[classes][];
+		neighs1 = new int[classes][];
+		rows1 = new int[classes][];
+		offsets2 = new int[classes][];
+		neighs2 = new int[classes][];
+		rows2 = new int[classes][];
+
+		for (int c = 0; c < classes; c++)
+		{
+			offsets1[c] = new int[n1+1];
+			offsets2[c] = new int[n2+1];
+		}
+
+		split(g1, ids, offsets1, neighs1, rows1);
+		split(g2, ids, offsets2, neighs2, rows2);
+	}
+
+	// CSR neighborhoods of 'g' for each edge class
+	private void split(Graph g, Map<String,Integer> ids, int[][] offsets, int[][] neighs, int[][] rows)
+	{
+		Node[] nodes = g.getNodes();
+		int n = nodes.length;
+
+		// count, offsets[c][a+1] holds the degree first
+		for (Node a : nodes)
+		{
+			for (Edge e : a.getEdgeNeighbors())
+			{
+				Integer c = ids.get(label(e));
+				if (c != null)
+					offsets[c][a.getId()+1]++;
+			}
+		}
+
+		for (int c = 0; c < classes; c++)
+		{
+			int nrows = 0;
+			for (int a = 0; a < n; a++)
+			{
+				if (offsets[c][a+1] > 0)
+					nrows++;
+				offsets[c][a+1] += offsets[c][a];
+			}
+
+			neighs[c] = new int[offsets[c][n]];
+			rows[c] = new int[nrows];
+			nrows = 0;
+			for (int a = 0; a < n; a++)
+				if (offsets[c][a+1] > offsets[c][a])
+					rows[c][nrows++] = a;
+		}
+
+		// fill
+		int[][] ptrs = new int[classes][];
+		for (int c = 0; c < classes; c++)
+			ptrs[c] = Arrays.copyOf(offsets[c], n);
+
+		for (Node a : nodes)
+		{
+			for (Edge e : a.getEdgeNeighbors())
+			{
+				Integer c = ids.get(label(e));
+				if (c != null)
+					neighs[c][ptrs[c][a.getId()]++] = e.getOther(a).getId();
+			}
+		}
+	}
+
+	// edges of g1 and g2 match iff their labels are equal
+	protected String label(Edge e)
+	{
+		if (params.edgematch)
+			return e.getType() + "/" + e.getChangetype();
+
+		return "" + e.getChangetype();
+	}
+
+	protected boolean match(Node a1, Node a2)
+	{
+		if (params.nodematch)
+			return a1.getSymbol().equals(a2.getSymbol());
+
+		return true;
+	}
+
+	// reduced product graphs don't have NC pairings (non-core/core)
+	protected boolean reducedvalid(Node a1, Node a2)
+	{
+		return !((a1.getCoreDist() == 0 || a2.getCoreDist() == 0) && (a1.getCoreDist() != a2.getCoreDist()));
+	}
+
+	public Graph getG1()
+	{
+		return g1;
+	}
+
+	public Graph getG2()
+	{
+		return g2;
+	}
+
+	public int getNodeCount()
+	{
+		int nc = 0;
+		for (boolean m : mask)
+			if (m)
+				nc++;
+		return nc;
+	}
+
+	public String toString()
+	{
+		return g1 + "<->" + g2;
+	}
+
+	/*
+	 * One level of the walk recursion: next = mask .* \sum_c A1_c prev A2_c^T
+	 * 'prev' is assumed to be zero outside of the mask
+	 */
+	public void step(double[] prev, double[] next)
+	{
+		step(prev, next, null, null);
+	}
+
+	// weighted level, the edge at slot 's' of class 'c' has weight w1[c][s] (w2[c][s] in g2),
+	// unweighted if null
+	public void step(double[] prev, double[] next, double[][] w1, double[][] w2)
+	{
+		if (tmp == null)
+			tmp = new double[n1*n2];
+
+		Arrays.fill(next, 0.0);
+
+		for (int c = 0; c < classes; c++)
+		{
+			int[] o1 = offsets1[c], e1 = neighs1[c];
+			int[] o2 = offsets2[c], e2 = neighs2[c];
+
+			// tmp = prev A2_c^T, only rows and columns with class 'c' edges
+			for (int a : rows1[c])
+			{
+				for (int b : rows2[c])
+				{
+					double val = 0.0;
+					for (int s = o2[b]; s < o2[b+1]; s++)
+						val += prev[a*n2 + e2[s]] * (w2 == null ? 1.0 : w2[c][s]);
+					tmp[a*n2 + b] = val;
+				}
+			}
+
+			// next += A1_c tmp
+			for (int a : rows1[c])
+			{
+				for (int s = o1[a]; s < o1[a+1]; s++)
+				{
+					int x = e1[s];
+					double w = w1 == null ? 1.0 : w1[c][s];
+					for (int b : rows2[c])
+						if (mask[a*n2 + b])
+							next[a*n2 + b] += tmp[x*n2 + b] * w;
+				}
+			}
+		}
+	}
+
+	// same as above with walk counts
+	public void step(long[] prev, long[] next)
+	{
+		if (ltmp == null)
+			ltmp = new long[n1*n2];
+
+		Arrays.fill(next, 0);
+
+		for (int c = 0; c < classes; c++)
+		{
+			int[] o1 = offsets1[c], e1 = neighs1[c];
+			int[] o2 = offsets2[c], e2 = neighs2[c];
+
+			for (int a : rows1[c])
+			{
+				for (int b : rows2[c])
+				{
+					long val = 0;
+					for (int s = o2[b]; s < o2[b+1]; s++)
+						val += prev[a*n2 + e2[s]];
+					ltmp[a*n2 + b] = val;
+				}
+			}
+
+			for (int a : rows1[c])
+			{
+				for (int s = o1[a]; s < o1[a+1]; s++)
+				{
+					int x = e1[s];
+					for (int b : rows2[c])
+						if (mask[a*n2 + b])
+							next[a*n2 + b] += ltmp[x*n2 + b];
+				}
+			}
+		}
+	}
+
+	/*
+	 * The walk computation routines, same as in ProductGraph
+	 */
+
+	// compute number common walks upto 'maxlength'
+	public long computeWalkCounts(int maxlength)
+	{
+		long sum = 0;
+		for (long c : computeWalkCountArray(maxlength))
+			sum += c;
+		return sum;
+	}
+
+	public long[] computeWalkCountArray(int maxlength)
+	{
+		long[] prev = new long[n1*n2];
+		long[] curr = new long[n1*n2];
+		long[] counts = new long[maxlength+1];
+
+		// initialize
+		for (int x = 0; x < n1*n2; x++)
+		{
+			if (mask[x])
+			{
+				prev[x] = 1;
+				counts[1]++;
+			}
+		}
+
+		for (int l = 2; l < maxlength+1; l++)
+		{
+			step(prev, curr);
+			for (long val : curr)
+				counts[l] += val;
+
+			long[] swap = prev;
+			prev = curr;
+			curr = swap;
+		}
+
+		return counts;
+	}
+
+	// compute the weighted sum of common walks upto 'maxlength'
+	// or until convergence if lambda is sufficiently small
+	public double computeWalkScore(int maxlength)
+	{
+		Node[] g1nodes = g1.getNodes();
+		Node[] g2nodes = g2.getNodes();
+
+		double[] w = new double[n1*n2];
+		double[] prev = new double[n1*n2];
+		double[] curr = new double[n1*n2];
+		double sum = 0.0;
+
+		// initialize
+		for (int a = 0; a < n1; a++)
+		{
+			for (int b = 0; b < n2; b++)
+			{
+				if (!mask[a*n2 + b])
+					continue;
+
+				w[a*n2 + b] = logistic(g1nodes[a].getCoreDist()) * logistic(g2nodes[b].getCoreDist());
+				prev[a*n2 + b] = w[a*n2 + b];
+				sum += prev[a*n2 + b];
+			}
+		}
+
+		double oldsum = 0.0;
+		for (int l = 2; l < maxlength + 1; l++)
+		{
+			oldsum = sum;
+
+			step(prev, curr);
+			for (int x = 0; x < n1*n2; x++)
+			{
+				curr[x] = w[x] * (1.0 - params.lambda) * (1.0 - params.lambda) * curr[x];
+				sum += curr[x];
+			}
+
+			double[] swap = prev;
+			prev = curr;
+			curr = swap;
+
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < 0.00001)
+				break;
+		}
+
+		return sum;
+	}
+
+	private double logistic(double x)
+	{
+		return 1.0 / (1.0 + Math.exp(params.beta * (x - 0.5))); // use logistic function instead of gaussian
+	}
+}
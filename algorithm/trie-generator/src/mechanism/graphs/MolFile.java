@@ -0,0 +1,138 @@
+package mechanism.graphs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/*
+ * Lines of a mol file, read at once and parsed from the bytes
+ *
+ * The atom and bond blocks are the bulk of a file, their fields are parsed in place
+ * without a String per line or field. Fields follow the old parsing of the graphs:
+ * integers are fixed-width columns as Integer.parseInt(line.substring(from,to).trim()),
+ * and tokens are fields of line.split("\\s+"), i.e. a line starting with whitespace
+ * has an empty first field.
+ */
+public class MolFile
+{
+	private byte[] data;
+	private int[] starts, ends;
+	private int count;
+
+	public MolFile(String filename) throws IOException
+	{
+		data = Files.readAllBytes(Paths.get(filename));
+
+		// line breaks as in Scanner.nextLine(), \n, \r\n or \r
+		starts = new int[64];
+		ends = new int[64];
+		int p = 0;
+		while (p < data.length)
+		{
+			int q = p;
+			while (q < data.length && data[q] != '\n' && data[q] != '\r')
+				q++;
+
+			if (count == starts.length)
+			{
+				starts = Arrays.copyOf(starts, 2*count);
+				ends = Arrays.copyOf(ends, 2*count);
+			}
+			starts[count] = p;
+			ends[count] = q;
+			count++;
+
+			if (q < data.length && data[q] == '\r' && q+1 < data.length && data[q+1] == '\n')
+				q++;
+			p = q+1;
+		}
+	}
+
+	public int getLineCount()
+	{
+		return count;
+	}
+
+	public String line(int i)
+	{
+		check(i);
+		return new String(data, starts[i], ends[i] - starts[i]);
+	}
+
+	// integer of the columns from..to-1 of line 'i'
+	public int intField(int i, int from, int to)
+	{
+		check(i);
+		int s = starts[i] + from;
+		int e = starts[i] + to;
+		if (from < 0 || from > to || e > ends[i])
+			throw new StringIndexOutOfBoundsException("line " + (i+1) + ", columns " + from + ".." + to);
+
+		// trim()
+		while (s < e && (data[s] & 0xff) <= ' ')
+			s++;
+		while (e > s && (data[e-1] & 0xff) <= ' ')
+			e--;
+
+		boolean negative = false;
+		if (s < e && (data[s] == '-' || data[s] == '+'))
+		{
+			negative = data[s] == '-';
+			s++;
+		}
+		if (s == e)
+			throw new NumberFormatException("For input string: \"" + new String(data, starts[i] + from, to - from).trim() + "\"");
+
+		int x = 0;
+		for (int p = s; p < e; p++)
+		{
+			if (data[p] < '0' || data[p] > '9')
+				throw new NumberFormatException("For input string: \"" + new String(data, starts[i] + from, to - from).trim() + "\"");
+			x = 10*x + (data[p] - '0');
+		}
+		return negative ? -x : x;
+	}
+
+	// field 'k' of line 'i' split by whitespace
+	public String token(int i, int k)
+	{
+		check(i);
+		int p = starts[i];
+		int end = ends[i];
+
+		for (int field = 0; ; field++)
+		{
+			int q = p;
+			while (q < end && !space(data[q]))
+				q++;
+
+			if (field == k)
+			{
+				if (q == p && field > 0)
+					break;
+				return new String(data, p, q - p);
+			}
+
+			p = q;
+			while (p < end && space(data[p]))
+				p++;
+			if (p == end)
+				break;
+		}
+
+		throw new ArrayIndexOutOfBoundsException("line " + (i+1) + " has no field " + k);
+	}
+
+	private void check(int i)
+	{
+		if (i < 0 || i >= count)
+			throw new IndexOutOfBoundsException("line " + (i+1) + " of " + count);
+	}
+
+	// \s of regular expressions
+	private static boolean space(byte b)
+	{
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+}
@@ -42,18 +42,13 @@ public class MoleculeGraph extends Graph
 
 	public void read(String filename) throws IOException
 	{
-		List<String> lines = new ArrayList<String>();
-		
-		Scanner sc = new Scanner(new File(filename));
-		while (sc.hasNextLine())
-			lines.add(sc.nextLine());
-		sc.close();
+		MolFile lines = new MolFile(filename);
 
 		
 		int id = 0; // start molecule's internal numbering from zero
 
-		int atomcount = Integer.parseInt(lines.get(3).substring(0, 3).trim());
-		int bondcount = Integer.parseInt(lines.get(3).substring(3, 6).trim());
+		int atomcount = lines.intField(3, 0, 3);
+		int bondcount = lines.intField(3, 3, 6);
 		
 		Node[] tmpatoms = new Node[atomcount];
 		Edge[] tmpbonds = new Edge[bondcount];
@@ -66,9 +61,7 @@ public class MoleculeGraph extends Graph
 		// atom block
 		for (int i = 4; i < 4 + atomcount; i++)
 		{
-			String line = lines.get(i);
-			String[] words = line.split("\\s+");
-			String symbol = words[4].trim();
+			String symbol = lines.token(i, 4);
 			
 			// don't take hydrogens
 			if (!symbol.equals("H") && !symbol.equals("H+"))
@@ -90,10 +83,9 @@ public class MoleculeGraph extends Graph
 		// bond block, ignore hydrogen bonds
 		for (int i = 4 + atomcount; i < 4 + atomcount + bondcount; i++)
 		{
-			String line = lines.get(i);
-			int source = Integer.parseInt(line.substring(0, 3).trim())-1; // numbering correction
-			int target = Integer.parseInt(line.substring(3, 6).trim())-1; // mol-files start from 1, we from 0
-			int type   = Integer.parseInt(line.substring(6, 9).trim());
+			int source = lines.intField(i, 0, 3)-1; // numbering correction
+			int target = lines.intField(i, 3, 6)-1; // mol-files start from 1, we from 0
+			int type   = lines.intField(i, 6, 9);
 			
 			// hydrogen bonds are not created
 			if (validatoms[source] == -1 || validatoms[target] == -1)
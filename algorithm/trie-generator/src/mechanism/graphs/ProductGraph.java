@@ -53,7 +53,9 @@ public class ProductGraph extends Graph
 	 *  2) form the PGNodes by pre-sorting the atoms on both sides by label, and forming PGNodes
 	 *     only inside these blocks (diagonal blocks on the (N_1 X N_2) matrix
 	 *  3) its impossible to count the number of PGEdges quickly, so do it by enumerating
-	 *  4) PGEdges are computed by checking neighborhoods of Atoms from both sides
+	 *  4) PGEdges are computed from the neighborhoods of Atoms from both sides: for each
+	 *     PGNode (a1,a2) the neighbor pairs (n1,n2) are looked up through an (atom,atom) -> PGNode
+	 *     index, thus the cost scales with the product of degrees instead of nc^2
 	 *  
 	 *  
 	 */
@@ -194,48 +196,66 @@ public class ProductGraph extends Graph
 	
 	protected void createEdges()
 	{
+		// index from (g1 node, g2 node) to the pg-node id, -1 if no such pg-node
+		int n2 = g2.getSize();
+		int[] index = new int[g1.getSize() * n2];
+		Arrays.fill(index, -1);
+		for (PGNode v : nodes)
+			index[v.a1.getId() * n2 + v.a2.getId()] = v.id;
+		
+		// instead of checking all node pairs, go through the neighbor pairs (n1,n2) of
+		// each pg-node (a1,a2) and look up the pg-node (n1,n2)
+		// the edges (i,j), i<j, are collected in the same order as an all-pairs scan would
+		int[] src = new int[nodes.length+1];
+		int[] tgt = new int[nodes.length+1];
+		int[] cand = new int[16];
+		ec = 0;
 		
-//		int z = 0;
-		
-		// count the number of necessary edges
-		for (int i = 0; i < nodes.length-1; i++)
+		for (int i = 0; i < nodes.length; i++)
 		{
-			for (int j = i+1; j < nodes.length; j++)
+			PGNode v = nodes[i];
+			
+			int cc = 0;
+			for (Edge e1 : v.a1.getEdgeNeighbors())
 			{
-				PGNode n1 = nodes[i];
-				PGNode n2 = nodes[j];
-				
-//				if (n1.a1.isNeighbor(n2.a1) && n1.a2.isNeighbor(n2.a2) && match(n1.a1.getEdge(n2.a1), n1.a2.getEdge(n2.a2)) && n1.a1.getSymbol().equals("C") && n1.a1.getEdge(n2.a1).getChangetype() == 0)
-//				{
-//					z++;
-//				}
+				Node n1 = e1.getOther(v.a1);
 				
-				if (n1.a1.isNeighbor(n2.a1) && n1.a2.isNeighbor(n2.a2) && match(n1.a1.getEdge(n2.a1), n1.a2.getEdge(n2.a2)))
-					ec++;
+				for (Edge e2 : v.a2.getEdgeNeighbors())
+				{
+					int j = index[n1.getId() * n2 + e2.getOther(v.a2).getId()];
+					
+					if (j > i && match(e1, e2))
+					{
+						if (cc == cand.length)
+							cand = Arrays.copyOf(cand, 2*cc);
+						cand[cc++] = j;
+					}
+				}
 			}
-		}
-		
-		// construct the edge array (suitable size)
-		edges = new PGEdge[ec];
-		
-		// create the edges
-		id = 0;
-		for (int i = 0; i < nodes.length-1; i++)
-		{	
-			for (int j = i+1; j < nodes.length; j++)
-			{ 
-				PGNode n1 = nodes[i];
-				PGNode n2 = nodes[j];
-				
-				if (n1.a1.isNeighbor(n2.a1) && n1.a2.isNeighbor(n2.a2) && match(n1.a1.getEdge(n2.a1), n1.a2.getEdge(n2.a2)))
+			
+			Arrays.sort(cand, 0, cc);
+			
+			for (int k = 0; k < cc; k++)
+			{
+				if (ec == src.length)
 				{
-					PGEdge next = new PGEdge(this, n1,n2);
-					next.id = id;
-					edges[id++] = next;
+					src = Arrays.copyOf(src, 2*ec);
+					tgt = Arrays.copyOf(tgt, 2*ec);
 				}
+				src[ec] = i;
+				tgt[ec++] = cand[k];
 			}
 		}
 		
+		// construct the edge array (suitable size) and create the edges
+		edges = new PGEdge[ec];
+		for (int k = 0; k < ec; k++)
+		{
+			PGEdge next = new PGEdge(this, nodes[src[k]], nodes[tgt[k]]);
+			next.id = k;
+			edges[k] = next;
+		}
+		
 		// neighbors array
 		neighnodes = new HashMap<PGNode, Map<PGNode,List<PGNode>>>();
 		for (PGNode n1 : nodes)
@@ -75,6 +75,7 @@ public class RGKGraph extends Graph
 		for (String s : reactant_ligands)
 		{
 			RGKNode n = new RGKNode(this);
+			n.id = i; // id's are positions in 'nodes'
 			n.molecule = new MoleculeGraph(Kernel.MOL_FOLDER + s + ".mol");
 			subnodes[i] = n;
 			nodes[i++] = n;
@@ -84,6 +85,7 @@ public class RGKGraph extends Graph
 		for (String s : product_ligands)
 		{
 			RGKNode n = new RGKNode(this);
+			n.id = subnodes.length + i;
 			n.molecule = new MoleculeGraph(Kernel.MOL_FOLDER + s + ".mol");
 			prodnodes[i] = n;
 			nodes[subnodes.length + i++] = n;
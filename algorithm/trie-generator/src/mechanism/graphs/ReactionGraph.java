@@ -1,6 +1,5 @@
 package mechanism.graphs;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -22,6 +21,17 @@ public class ReactionGraph extends Graph
 	{
 		super(parent,nodebits);
 	}
+	
+	// graph of a corpus file, the nodes and edges are filled in by Corpus
+	ReactionGraph(String ligand, int direction, int mapnum, List<String> ec_codes, List<String> reactant_ligands, List<String> product_ligands)
+	{
+		this.ligand = ligand;
+		this.direction = direction;
+		this.mapnum = mapnum;
+		this.ec_codes = ec_codes;
+		this.reactant_ligands = reactant_ligands;
+		this.product_ligands = product_ligands;
+	}
 		
 	public ReactionGraph(String filename)
 	{
@@ -35,6 +45,11 @@ public class ReactionGraph extends Graph
 	}
 	
 	
+	public List<String> getECCodes()
+	{
+		return ec_codes;
+	}
+	
 	public List<String> getReactantLigands()
 	{
 		return reactant_ligands;
@@ -87,26 +102,21 @@ public class ReactionGraph extends Graph
 		if (parts.length == 3)
 			mapnum = Integer.parseInt(parts[1]);
 		
-		List<String> lines = new ArrayList<String>();
-		
-		Scanner sc = new Scanner(new File(filename));
-		while (sc.hasNextLine())
-			lines.add(sc.nextLine());
-		sc.close();
+		MolFile lines = new MolFile(filename);
 		
 		// first line contains ligand and ec-codes
-		if (!lines.get(0).trim().isEmpty())
+		if (!lines.line(0).trim().isEmpty())
 		{
-			ligand = lines.get(0).substring(0,6).trim();
-			String[] ecwords = lines.get(0).split("[ \t]");
+			ligand = lines.line(0).substring(0,6).trim();
+			String[] ecwords = lines.line(0).split("[ \t]");
 			for (int i = 1; i < ecwords.length; i++)
 				ec_codes.add(ecwords[i]);
 		}
 		
 		// second line contains the reaction equation as C1 C2 => C3 C4
-		if (!lines.get(1).trim().isEmpty())
+		if (!lines.line(1).trim().isEmpty())
 		{
-			String[] substs = lines.get(1).trim().split("[ ]");
+			String[] substs = lines.line(1).trim().split("[ ]");
 			int j;
 			for (j = 0; j < substs.length; j++)
 			{
@@ -121,8 +131,8 @@ public class ReactionGraph extends Graph
 		
 		int aid = 0;
 		int bid = 0;
-		int atomcount = Integer.parseInt(lines.get(3).substring(0, 3).trim());
-		int bondcount = Integer.parseInt(lines.get(3).substring(3, 6).trim());
+		int atomcount = lines.intField(3, 0, 3);
+		int bondcount = lines.intField(3, 3, 6);
 		
 		this.formula = new HashMap<String,Integer>();
 
@@ -132,9 +142,7 @@ public class ReactionGraph extends Graph
 		
 		for (int i = 4; i < 4 + atomcount; i++)
 		{
-			String line = lines.get(i);
-			String[] words = line.split("\\s+");
-			String symbol = words[4].trim();
+			String symbol = lines.token(i, 4);
 			
 			Node a = new Atom(this, aid, symbol);
 			
@@ -148,12 +156,11 @@ public class ReactionGraph extends Graph
 		
 		for (int i = 4 + atomcount; i < 4 + atomcount + bondcount; i++)
 		{
-			String line = lines.get(i);
-			int source = Integer.parseInt(line.substring(0, 3).trim());
-			int target = Integer.parseInt(line.substring(3, 6).trim());
-			int event = Integer.parseInt(line.substring(6, 9).trim());
-			int oldtype = Integer.parseInt(line.substring(9, 12).trim());
-			int newtype = Integer.parseInt(line.substring(12, 15).trim());
+			int source = lines.intField(i, 0, 3);
+			int target = lines.intField(i, 3, 6);
+			int event = lines.intField(i, 6, 9);
+			int oldtype = lines.intField(i, 9, 12);
+			int newtype = lines.intField(i, 12, 15);
 			
 			Node src = nodes[source-1];
 			Node tgt = nodes[target-1];
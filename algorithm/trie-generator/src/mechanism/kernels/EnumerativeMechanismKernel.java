@@ -34,11 +34,81 @@ public class EnumerativeMechanismKernel extends SequenceKernel
 		super(graphs, params);
 		
 		Z = new double[graphs.length][params.maxlen+1];
+		
+		if (params.lambdas != null)
+		{
+			levels = new double[ec][][];
+			for (int i = 0; i < ec; i++)
+				levels[i] = new double[params.start + i][];
+		}
 	}
 
 	public double compute(Graph g1, Graph g2)
 	{
-		return super.compute(g1,g2);
+		if (params.lambdas == null || params.paths)
+			return super.compute(g1,g2);
+		
+		// lambda sweep: the lambda-free level sums are stored, and the
+		// matrix of any lambda is then computed from them with setLambda()
+		long bytes = MemoryGate.footprint(g1, g2, params);
+		gate.acquire(bytes);
+		
+		double[] res;
+		try
+		{
+			long pgtime = System.currentTimeMillis();
+			CSRProductGraph pg = pgs != null ? pgs.getCSR(g1, g2, params) : new CSRProductGraph(g1, g2, params);
+			this.pgtime.addAndGet(System.currentTimeMillis() - pgtime);
+			
+			long walktime = System.currentTimeMillis();
+			res = params.nontottering ? nontottering_walk_levels(pg) : walk_levels(pg);
+			storeLevels(g1, g2, res);
+			this.walktime.addAndGet(System.currentTimeMillis() - walktime);
+		}
+		finally
+		{
+			gate.release(bytes);
+		}
+		
+		counted.incrementAndGet();
+		
+		return sum_levels(res, params.lambda);
+	}
+	
+	// recomputes the matrix for another lambda from the stored level sums
+	public void setLambda(double lambda)
+	{
+		params.lambda = lambda;
+		
+		for (int i = 0; i < ec; i++)
+		{
+			for (int j = 0; j < levels[i].length; j++)
+				setCell(i+params.start-1, j, sum_levels(levels[i][j], lambda));
+			finishRow(i+params.start-1);
+		}
+	}
+	
+	// the kernel value from the level sums, with the convergence check of walks()
+	//
+	// lambda enters the walks as lambda^l at level 'l', the non-tottering walks 
+	// get lambda^(l-1) at levels l >= 2 (the first message has no lambda) 
+	protected double sum_levels(double[] res, double lambda)
+	{
+		double sum = lambda * res[1];
+		double oldsum = 0.0;
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			oldsum = sum;
+			sum += Math.pow(lambda, params.nontottering ? l-1 : l) * res[l];
+			
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return sum;
 	}
 	
 	private void compute_Zconstants(Graph g)
@@ -293,6 +363,292 @@ public class EnumerativeMechanismKernel extends SequenceKernel
 	
 	
 	
+	// weight(v) of all nodes of the array product graph
+	protected double[] node_weights(CSRProductGraph pg)
+	{
+		Node[] g1nodes = pg.getG1().getNodes();
+		Node[] g2nodes = pg.getG2().getNodes();
+		
+		double[] w1 = new double[g1nodes.length];
+		for (int i = 0; i < g1nodes.length; i++)
+			w1[i] = weight(g1nodes[i]);
+		double[] w2 = new double[g2nodes.length];
+		for (int i = 0; i < g2nodes.length; i++)
+			w2[i] = weight(g2nodes[i]);
+		
+		double[] w = new double[pg.nc];
+		for (int v = 0; v < pg.nc; v++)
+			w[v] = w1[pg.node1[v]] * w2[pg.node2[v]];
+		return w;
+	}
+	
+	protected double walks(CSRProductGraph pg)
+	{
+		double[] w = node_weights(pg);
+		double[] prev = new double[pg.nc];
+		double[] curr = new double[pg.nc];
+		double sum = 0.0;
+		
+		// initialize
+		for (int v = 0; v < pg.nc; v++)
+		{
+			prev[v] = params.lambda * w[v];
+			sum += prev[v];
+		}
+		
+		double oldsum = 0.0;
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			oldsum = sum;
+			for (int v = 0; v < pg.nc; v++)
+			{
+				double val = 0.0;
+				for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+					val += prev[pg.neighs[s]];
+				
+				curr[v] = params.lambda * w[v] * val;
+				sum += curr[v];
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return sum;
+	}
+	
+	protected boolean implicitWalks()
+	{
+		return true;
+	}
+	
+	protected double walks(KroneckerProductGraph pg)
+	{
+		// same DP as above as n1 x n2 matrices, F_l = w .* (A1 F_{l-1} A2^T)
+		Node[] g1nodes = pg.getG1().getNodes();
+		Node[] g2nodes = pg.getG2().getNodes();
+		int n1 = pg.n1;
+		int n2 = pg.n2;
+		
+		double[] w1 = new double[n1];
+		for (int a = 0; a < n1; a++)
+			w1[a] = weight(g1nodes[a]);
+		double[] w2 = new double[n2];
+		for (int b = 0; b < n2; b++)
+			w2[b] = weight(g2nodes[b]);
+		
+		double[] w = new double[n1*n2];
+		double[] prev = new double[n1*n2];
+		double[] curr = new double[n1*n2];
+		double sum = 0.0;
+		
+		// initialize
+		for (int a = 0; a < n1; a++)
+		{
+			for (int b = 0; b < n2; b++)
+			{
+				if (!pg.mask[a*n2 + b])
+					continue;
+				
+				w[a*n2 + b] = params.lambda * (w1[a] * w2[b]);
+				prev[a*n2 + b] = w[a*n2 + b];
+				sum += prev[a*n2 + b];
+			}
+		}
+		
+		double oldsum = 0.0;
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			oldsum = sum;
+			
+			pg.step(prev, curr);
+			for (int x = 0; x < n1*n2; x++)
+			{
+				curr[x] = w[x] * curr[x];
+				sum += curr[x];
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return sum;
+	}
+	
+	protected double nontottering_walks(CSRProductGraph pg)
+	{
+		// messages are indexed by the directed edge ids (pg.dirs), 
+		// message (u -> v) of the slot s = (v, u) is pg.reverse(pg.dirs[s])
+		
+		double[] w = node_weights(pg);
+		double[] prev = new double[pg.ec*2]; // both directions
+		double[] curr = new double[pg.ec*2];
+		
+		double sum = 0.0;
+		double oldsum = 0.0;
+		
+		// initialize case 1 of probability sums (F)
+		for (int v = 0; v < pg.nc; v++)
+			sum += params.lambda * w[v];
+		
+		// initialize trivial cases for messages (M)
+		for (int u = 0; u < pg.nc; u++)
+			for (int s = pg.offsets[u]; s < pg.offsets[u+1]; s++)
+				prev[pg.dirs[s]] = w[u] * w[u];
+		
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			oldsum = sum;
+			
+			for (int v = 0; v < pg.nc; v++)
+			{
+				double val = 0.0;
+				for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+					val += prev[pg.reverse(pg.dirs[s])];
+				
+				sum += params.lambda * w[v] * val;
+			}
+			
+			// define new messages (M)
+			for (int src = 0; src < pg.nc; src++)
+			{
+				for (int s = pg.offsets[src]; s < pg.offsets[src+1]; s++)
+				{
+					int tgt = pg.neighs[s];
+					
+					double val = 0.0;
+					for (int k = pg.offsets[src]; k < pg.offsets[src+1]; k++)
+					{
+						int u = pg.neighs[k];
+						if (pg.node1[u] == pg.node1[tgt] || pg.node2[u] == pg.node2[tgt])
+							continue;
+						
+						val += prev[pg.reverse(pg.dirs[k])];
+					}
+					
+					curr[pg.dirs[s]] = params.lambda * w[src] * val;
+				}
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			
+			double increase = (sum - oldsum) / oldsum; // in percentages / 100
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return sum;
+	}
+	
+	
+	
+	// level sums of walks() without lambda and convergence check
+	protected double[] walk_levels(CSRProductGraph pg)
+	{
+		double[] w = node_weights(pg);
+		double[] prev = new double[pg.nc];
+		double[] curr = new double[pg.nc];
+		double[] res = new double[params.maxlen+1];
+		
+		// initialize
+		for (int v = 0; v < pg.nc; v++)
+		{
+			prev[v] = w[v];
+			res[1] += prev[v];
+		}
+		
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			for (int v = 0; v < pg.nc; v++)
+			{
+				double val = 0.0;
+				for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+					val += prev[pg.neighs[s]];
+				
+				curr[v] = w[v] * val;
+				res[l] += curr[v];
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		
+		return res;
+	}
+	
+	// level sums of nontottering_walks() without lambda and convergence check
+	protected double[] nontottering_walk_levels(CSRProductGraph pg)
+	{
+		double[] w = node_weights(pg);
+		double[] prev = new double[pg.ec*2]; // both directions
+		double[] curr = new double[pg.ec*2];
+		double[] res = new double[params.maxlen+1];
+		
+		for (int v = 0; v < pg.nc; v++)
+			res[1] += w[v];
+		
+		for (int u = 0; u < pg.nc; u++)
+			for (int s = pg.offsets[u]; s < pg.offsets[u+1]; s++)
+				prev[pg.dirs[s]] = w[u] * w[u];
+		
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			for (int v = 0; v < pg.nc; v++)
+			{
+				double val = 0.0;
+				for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+					val += prev[pg.reverse(pg.dirs[s])];
+				
+				res[l] += w[v] * val;
+			}
+			
+			for (int src = 0; src < pg.nc; src++)
+			{
+				for (int s = pg.offsets[src]; s < pg.offsets[src+1]; s++)
+				{
+					int tgt = pg.neighs[s];
+					
+					double val = 0.0;
+					for (int k = pg.offsets[src]; k < pg.offsets[src+1]; k++)
+					{
+						int u = pg.neighs[k];
+						if (pg.node1[u] == pg.node1[tgt] || pg.node2[u] == pg.node2[tgt])
+							continue;
+						
+						val += prev[pg.reverse(pg.dirs[k])];
+					}
+					
+					curr[pg.dirs[s]] = w[src] * val;
+				}
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		
+		return res;
+	}
+	
 	protected double nondecomposable_walks(ProductGraph pg)
 	{
 		// count distance-sums of all walks ending at 'i' of length 'k'
@@ -495,26 +851,12 @@ public class EnumerativeMechanismKernel extends SequenceKernel
 	
 	protected double weight(PGNode v)
 	{
-		if (params.kw == KernelWeight.Exponential)
-			return exp(v);
-		else if (params.kw == KernelWeight.Logistic)
-			return logistic(v);
-		else if (params.kw == KernelWeight.Diffusion)
-			return diffusion(v);
-		
-		return 1.0;
+		return nodeWeight(v);
 	}
 	
 	protected double weight(Node v)
 	{
-		if (params.kw == KernelWeight.Exponential)
-			return exp(v);
-		else if (params.kw == KernelWeight.Logistic)
-			return logistic(v);
-		else if (params.kw == KernelWeight.Diffusion)
-			return diffusion(v);
-		
-		return 1.0;
+		return nodeWeight(v);
 	}
 	
 
@@ -2,7 +2,9 @@ package mechanism.kernels;
 
 import mechanism.*;
 import mechanism.graphs.Atom;
+import mechanism.graphs.CSRProductGraph;
 import mechanism.graphs.Graph;
+import mechanism.graphs.KroneckerProductGraph;
 import mechanism.graphs.Node;
 import mechanism.graphs.PGEdge;
 import mechanism.graphs.PGNode;
@@ -35,32 +37,61 @@ public class MarginalMechanismKernel extends SequenceKernel
 	 */
 	
 	
-	// probability structures
-	protected double ps;  // P_s(v) * P_s(v')
-	protected double pe;  // P_e(v) * P_e(v) 
-	protected List<Double> ps1;  // Ps(v)*Ps(v)
-	protected List<Double> pe1;  // Pe(v)*Pe(v')
-	protected List<Map<Integer,Double>> pe2;  // Pe(v|u)*Pe(v'|u')
-	protected List<Map<Integer,Double>> pt1;  // Pt(v|u)*Pt(v'|u')
-	protected List<Map<Integer,Map<Integer,Double>>>  pt2; // Pt(v|u,s)*Pt(v'|u',s')
-	
 	// Z contains K_k(i,i) kernel values as Z[i][k]
 	protected double[][] Z;
 	
+	// per-graph probability tables, indexed by graph index
+	protected GraphProbabilities[] tables;
+	
+	// tables of the prepared graphs outside of the kernel, e.g. queries, by identity
+	// since Graph.equals() is isomorphism
+	protected Map<Graph,GraphProbabilities> outside = Collections.synchronizedMap(new IdentityHashMap<Graph,GraphProbabilities>());
+	
+	// relative residual and iteration limit of the closed form solver
+	public static double SOLVE_TOLERANCE = 1e-10;
+	public static int SOLVE_MAXITER = 1000;
+	
 	public MarginalMechanismKernel(Graph[] graphs, KernelParams params)
 	{
 		super(graphs, params);
+		
+		if (params.bylength)
+		{
+			levels = new double[ec][][];
+			for (int i = 0; i < ec; i++)
+				levels[i] = new double[params.start + i][];
+		}
 	}
 
 	public void compute()
 	{
+		if (prepare())
+			super.compute();
+	}
+	
+	public boolean prepare()
+	{
+		// shared tables are kept
+		if (tables == null)
+			computeTables();
+		
 		if (params.partialnorm)
 			computeZ();
 		
-		if (params.kw == KernelWeight.Exponential && params.alpha <= 0.0)
-			return;
-		
-		super.compute();
+		return !(params.kw == KernelWeight.Exponential && params.alpha <= 0.0);
+	}
+	
+	// tables of 'other' are valid here too if both have the same weights and lambda
+	public boolean canShareTables(MarginalMechanismKernel other)
+	{
+		KernelParams p = other.getParams();
+		return p.kw == params.kw && p.alpha == params.alpha && p.beta == params.beta && p.lambda == params.lambda;
+	}
+	
+	// uses the tables of 'other', which has computed them already
+	public void shareTables(MarginalMechanismKernel other)
+	{
+		tables = other.tables;
 	}
 
 	
@@ -68,26 +99,12 @@ public class MarginalMechanismKernel extends SequenceKernel
 
 	protected double start_value(Node a)
 	{
-		if (params.kw == KernelWeight.Exponential)
-			return exp(a);
-		else if (params.kw == KernelWeight.Logistic)
-			return logistic(a);
-		else if (params.kw == KernelWeight.Diffusion)
-			return diffusion(a);
-		
-		return 1.0;
+		return nodeWeight(a);
 	}
 	
 	protected double trans_value(Node curr, Node next)
 	{
-		if (params.kw == KernelWeight.Exponential)
-			return exp(next);
-		else if (params.kw == KernelWeight.Logistic)
-			return logistic(next);
-		else if (params.kw == KernelWeight.Diffusion)
-			return diffusion(next);
-		
-		return 1.0;
+		return nodeWeight(next);
 	}
 	
 	protected double trans_value(Node prev, Node curr, Node next)
@@ -243,31 +260,173 @@ public class MarginalMechanismKernel extends SequenceKernel
 	}
 	
 	
-	// (3) cached probability functions
+	// (3) per-graph probability tables
+	//
+	// all of the Ps, Pt and Pe values above depend on a single graph only, thus they
+	// are computed once per graph with the functions above and stored as arrays.
+	// Neighbors are stored in CSR form (neighs[offsets[u]..offsets[u+1]-1]), and the
+	// transition tables are aligned to these slots:
+	//
+	//  ps[u]                  = Ps(u)
+	//  pe[u]                  = Pe(u)
+	//  pt[s]                  = Pt(v|u)     for slot s = (u -> v)
+	//  pe2[s]                 = Pe(v|u)     for slot s = (u -> v)
+	//  pt2[offsets2[s] + k]   = Pt(x|u,v)   for slot s = (u -> v) and x the k'th neighbor of v
+	//
+	protected class GraphProbabilities
+	{
+		protected Graph g;
+		protected int[] offsets;
+		protected int[] neighs;
+		protected int[] offsets2;
+		protected double[] ps, pe, pt, pe2, pt2;
+		
+		public GraphProbabilities(Graph g)
+		{
+			this.g = g;
+			Node[] nodes = g.getNodes();
+			int n = nodes.length;
+			
+			// CSR neighborhoods, node ids are positions in the node array
+			offsets = new int[n+1];
+			for (int u = 0; u < n; u++)
+			{
+				assert nodes[u].getId() == u;
+				offsets[u+1] = offsets[u] + nodes[u].getNodeNeighbors().size();
+			}
+			
+			neighs = new int[offsets[n]];
+			for (int u = 0; u < n; u++)
+			{
+				int s = offsets[u];
+				for (Node v : nodes[u].getNodeNeighbors())
+					neighs[s++] = v.getId();
+			}
+			
+			// start probabilities, the normalizer is shared by all nodes
+			ps = new double[n];
+			double sum = 0.0;
+			for (Node x : nodes)
+				sum += start_value(x);
+			for (int u = 0; u < n; u++)
+				ps[u] = sum == 0.0 ? 0.0 : start_value(nodes[u]) / sum;
+			
+			pe = new double[n];
+			for (int u = 0; u < n; u++)
+				pe[u] = Pend(nodes[u]);
+			
+			pt = new double[neighs.length];
+			pe2 = new double[neighs.length];
+			offsets2 = new int[neighs.length+1];
+			for (int u = 0; u < n; u++)
+			{
+				for (int s = offsets[u]; s < offsets[u+1]; s++)
+				{
+					Node v = nodes[neighs[s]];
+					pt[s] = Ptransition(nodes[u], v);
+					pe2[s] = Pend(nodes[u], v);
+					offsets2[s+1] = offsets2[s] + (offsets[v.getId()+1] - offsets[v.getId()]);
+				}
+			}
+			
+			pt2 = new double[offsets2[neighs.length]];
+			for (int u = 0; u < n; u++)
+			{
+				for (int s = offsets[u]; s < offsets[u+1]; s++)
+				{
+					int v = neighs[s];
+					for (int k = offsets[v]; k < offsets[v+1]; k++)
+						pt2[offsets2[s] + k - offsets[v]] = Ptransition(nodes[u], nodes[v], nodes[neighs[k]]);
+				}
+			}
+		}
+		
+		// slot of the neighbor 'v' of 'u', or -1
+		public int slot(int u, int v)
+		{
+			for (int s = offsets[u]; s < offsets[u+1]; s++)
+				if (neighs[s] == v)
+					return s;
+			return -1;
+		}
+	}
 	
-	protected double Pstart(PGNode v)
+	// computes the tables of all graphs
+	protected void computeTables()
 	{
-		return ps1.get(v.getId());
+		tables = new GraphProbabilities[graphs.length];
+		
+		for (Graph g : graphs)
+		{
+			if (g.getIndex() >= 0 && g.getIndex() < tables.length)
+				tables[g.getIndex()] = new GraphProbabilities(g);
+		}
 	}
 	
-	protected double Ptransition(PGNode curr, PGNode next)
+	// table of graph 'g', computed on the fly for graphs outside of the kernel unless prepared
+	protected GraphProbabilities tables(Graph g)
 	{
-		return pt1.get(curr.getId()).get(next.getId());
+		if (tables != null && g.getIndex() >= 0 && g.getIndex() < tables.length && tables[g.getIndex()] != null && tables[g.getIndex()].g == g)
+			return tables[g.getIndex()];
+		
+		GraphProbabilities t = outside.get(g);
+		if (t != null)
+			return t;
+		
+		return new GraphProbabilities(g);
 	}
 	
-	protected double Ptransition(PGNode prev, PGNode curr, PGNode next)
+	public void prepare(Graph g)
 	{
-		return pt2.get(prev.getId()).get(curr.getId()).get(next.getId());
+		super.prepare(g);
+		outside.put(g, new GraphProbabilities(g));
 	}
 	
-	protected double Pend(PGNode v)
+	public void release(Graph g)
 	{
-		return pe1.get(v.getId());
+		super.release(g);
+		outside.remove(g);
 	}
 	
-	protected double Pend(PGNode prev, PGNode curr)
+	
+	// (4) cached probability functions
+	//
+	// probability tables of a single product graph, created for each pair
+	// separately so that concurrently computed pairs don't share any state
+	protected class PGProbabilities
 	{
-		return pe2.get(prev.getId()).get(curr.getId());
+		protected double ps;  // P_s(v) * P_s(v')
+		protected double pe;  // P_e(v) * P_e(v) 
+		protected List<Double> ps1;  // Ps(v)*Ps(v)
+		protected List<Double> pe1;  // Pe(v)*Pe(v')
+		protected List<Map<Integer,Double>> pe2;  // Pe(v|u)*Pe(v'|u')
+		protected List<Map<Integer,Double>> pt1;  // Pt(v|u)*Pt(v'|u')
+		protected List<Map<Integer,Map<Integer,Double>>>  pt2; // Pt(v|u,s)*Pt(v'|u',s')
+		
+		public double Pstart(PGNode v)
+		{
+			return ps1.get(v.getId());
+		}
+		
+		public double Ptransition(PGNode curr, PGNode next)
+		{
+			return pt1.get(curr.getId()).get(next.getId());
+		}
+		
+		public double Ptransition(PGNode prev, PGNode curr, PGNode next)
+		{
+			return pt2.get(prev.getId()).get(curr.getId()).get(next.getId());
+		}
+		
+		public double Pend(PGNode v)
+		{
+			return pe1.get(v.getId());
+		}
+		
+		public double Pend(PGNode prev, PGNode curr)
+		{
+			return pe2.get(prev.getId()).get(curr.getId());
+		}
 	}
 	
 	// weights the whole walk, assume path-model (full order markov)
@@ -275,7 +434,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 	{
 		double result = 1.0;
 		
-		result *= Pstart(walk[0]);
+		result *= tables(walk[0].getParent()).ps[walk[0].getId()];
 		
 		// 1st order
 		if (!params.nontottering && !params.paths)
@@ -305,64 +464,81 @@ public class MarginalMechanismKernel extends SequenceKernel
 
 	
 	// initialize probabilites
-	protected void initialize_probabilities(ProductGraph pg)
+	protected PGProbabilities initialize_probabilities(ProductGraph pg)
 	{
+		PGProbabilities p = new PGProbabilities();
 		double svalue, evalue, tvalue;
 		
 		// standard ps/pe values
-		ps = 1.0 / (pg.getG1().getSize() * pg.getG2().getSize());
-		pe = (1.0 - params.lambda) * (1.0 - params.lambda);
+		p.ps = 1.0 / (pg.getG1().getSize() * pg.getG2().getSize());
+		p.pe = (1.0 - params.lambda) * (1.0 - params.lambda);
 		
 		// fill with zeros
-		ps1 = new ArrayList<Double>(pg.getNodeCount());
+		p.ps1 = new ArrayList<Double>(pg.getNodeCount());
 		for (int i = 0; i < pg.getNodeCount(); i++) // prefill
-			ps1.add(ps);
+			p.ps1.add(p.ps);
 		
-		pe1 = new ArrayList<Double>(pg.getNodeCount());
+		p.pe1 = new ArrayList<Double>(pg.getNodeCount());
 		for (int i = 0; i < pg.getNodeCount(); i++) // prefill
-			pe1.add(pe);
+			p.pe1.add(p.pe);
 
-		pe2 = new ArrayList<Map<Integer,Double>>(pg.getNodeCount());
+		p.pe2 = new ArrayList<Map<Integer,Double>>(pg.getNodeCount());
 		
-		pt1 = new ArrayList<Map<Integer,Double>>(pg.getNodeCount());
-		pt2 = new ArrayList<Map<Integer,Map<Integer,Double>>>(pg.getNodeCount());
+		p.pt1 = new ArrayList<Map<Integer,Double>>(pg.getNodeCount());
+		p.pt2 = new ArrayList<Map<Integer,Map<Integer,Double>>>(pg.getNodeCount());
+		
+		GraphProbabilities t1 = tables(pg.getG1());
+		GraphProbabilities t2 = tables(pg.getG2());
 		
 		for (PGNode v1 : pg.getNodes())
 		{
+			int a1 = v1.a1.getId();
+			int a2 = v1.a2.getId();
+			
 			// 1st order start prob
-			svalue = Pstart(v1.a1) * Pstart(v1.a2);
-			ps1.set(v1.getId(), svalue);
+			svalue = t1.ps[a1] * t2.ps[a2];
+			p.ps1.set(v1.getId(), svalue);
 			
 			// 1st order end prob
-			evalue = Pend(v1.a1) * Pend(v1.a2);
-			pe1.set(v1.getId(), evalue);
+			evalue = t1.pe[a1] * t2.pe[a2];
+			p.pe1.set(v1.getId(), evalue);
 			
 			// make room
-			pe2.add(new HashMap<Integer,Double>(v1.getNodeNeighbors().size()));
-			pt1.add(new HashMap<Integer,Double>(v1.getNodeNeighbors().size()));
-			pt2.add(new HashMap<Integer, Map<Integer,Double>>(v1.getNodeNeighbors().size()));
+			p.pe2.add(new HashMap<Integer,Double>(v1.getNodeNeighbors().size()));
+			p.pt1.add(new HashMap<Integer,Double>(v1.getNodeNeighbors().size()));
+			p.pt2.add(new HashMap<Integer, Map<Integer,Double>>(v1.getNodeNeighbors().size()));
 			
 			for (PGNode v2 : v1.getNodeNeighbors())
 			{
+				int b1 = v2.a1.getId();
+				int b2 = v2.a2.getId();
+				int s1 = t1.slot(a1, b1);
+				int s2 = t2.slot(a2, b2);
+				
 				// 1st order transition prob
-				tvalue = Ptransition(v1.a1, v2.a1) * Ptransition(v1.a2, v2.a2);
-				pt1.get(v1.getId()).put(v2.getId(), tvalue);
+				tvalue = t1.pt[s1] * t2.pt[s2];
+				p.pt1.get(v1.getId()).put(v2.getId(), tvalue);
 				
 				// 2nd order end prob
-				evalue = Pend(v1.a1, v2.a1) * Pend(v1.a2, v2.a2);
-				pe2.get(v1.getId()).put(v2.getId(), evalue);
+				evalue = t1.pe2[s1] * t2.pe2[s2];
+				p.pe2.get(v1.getId()).put(v2.getId(), evalue);
 				
 				// make room
-				pt2.get(v1.getId()).put(v2.getId(), new HashMap<Integer,Double>(v2.getNodeNeighbors().size()));
+				p.pt2.get(v1.getId()).put(v2.getId(), new HashMap<Integer,Double>(v2.getNodeNeighbors().size()));
 				
 				for (PGNode v3 : v2.getNodeNeighbors())
 				{
+					int k1 = t1.slot(b1, v3.a1.getId()) - t1.offsets[b1];
+					int k2 = t2.slot(b2, v3.a2.getId()) - t2.offsets[b2];
+					
 					// 2nd order transition prob
-					tvalue = Ptransition(v1.a1, v2.a1, v3.a1) * Ptransition(v1.a2, v2.a2, v3.a2);
-					pt2.get(v1.getId()).get(v2.getId()).put(v3.getId(), tvalue);
+					tvalue = t1.pt2[t1.offsets2[s1] + k1] * t2.pt2[t2.offsets2[s2] + k2];
+					p.pt2.get(v1.getId()).get(v2.getId()).put(v3.getId(), tvalue);
 				}
 			}
 		}
+		
+		return p;
 	}
 	
 	protected void computeZ()
@@ -374,9 +550,6 @@ public class MarginalMechanismKernel extends SequenceKernel
 		
 		for (Graph g : graphs)
 		{
-			if (params.kw == KernelWeight.Diffusion)
-				diffs.put(g, new Diffusion(g, Math.abs(params.beta)));
-			
 			ProductGraph pg = new ProductGraph(g, g, params);
 			if (params.nontottering)
 				Z[g.getIndex()] = nontottering_walk_counts(pg);
@@ -386,7 +559,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 	}
 	
 	// tests that probs sum to one and are valid
-	protected boolean test_probabilities(ProductGraph pg)
+	protected boolean test_probabilities(ProductGraph pg, PGProbabilities p)
 	{
 		// start probs
 		double sum = 0.0;
@@ -552,24 +725,24 @@ public class MarginalMechanismKernel extends SequenceKernel
 		
 		for (PGNode v1 : pg.getNodes())
 			for (PGNode v2 : pg.getNodes())
-				if (pt1.get(v1.getId()).containsKey(v2) && Ptransition(v1,v2) > 0)
-					assert Ptransition(v1,v2) == Ptransition(v1.a1,v2.a1) * Ptransition(v1.a2,v2.a2);
+				if (p.pt1.get(v1.getId()).containsKey(v2) && p.Ptransition(v1,v2) > 0)
+					assert p.Ptransition(v1,v2) == Ptransition(v1.a1,v2.a1) * Ptransition(v1.a2,v2.a2);
 		
 		for (PGNode v3 : pg.getNodes())
 		{
 			for (PGNode v1 : pg.getNodes())
 			{
-				if (!pt2.get(v3.getId()).containsKey(v1.getId()))
+				if (!p.pt2.get(v3.getId()).containsKey(v1.getId()))
 					continue;
 				
 				for (PGNode v2 : pg.getNodes())
 				{
-					if (pt2.get(v3.getId()).get(v1.getId()).containsKey(v2.getId()) && Ptransition(v3,v1,v2) > 0)
+					if (p.pt2.get(v3.getId()).get(v1.getId()).containsKey(v2.getId()) && p.Ptransition(v3,v1,v2) > 0)
 					{
 						// no common stuff
 						assert v3.a1 != v2.a1 && v3.a2 != v2.a2;
 						// decomposition
-						assert Ptransition(v3,v1,v2) == Ptransition(v3.a1,v1.a1,v2.a1) * Ptransition(v3.a2,v1.a2,v2.a2);
+						assert p.Ptransition(v3,v1,v2) == Ptransition(v3.a1,v1.a1,v2.a1) * Ptransition(v3.a2,v1.a2,v2.a2);
 					}
 				}
 			}
@@ -581,8 +754,17 @@ public class MarginalMechanismKernel extends SequenceKernel
 	
 	protected double walks(ProductGraph pg)
 	{
+		return collapse(pg.getG1(), pg.getG2(), walk_counts(pg));
+	}
+	
+	// sums the per-length values 'res' of the pair, and stores them if per-length values are recorded
+	protected double collapse(Graph g1, Graph g2, double[] res)
+	{
+		if (levels != null && g1.getIndex() >= params.start-1 && g1.getIndex() < params.end && g1 == graphs[g1.getIndex()])
+			storeLevels(g1, g2, res);
+		
 		double sum = 0.0;
-		for (Double d : walk_counts(pg))
+		for (Double d : res)
 			sum += d;
 		return sum;
 	}
@@ -601,9 +783,9 @@ public class MarginalMechanismKernel extends SequenceKernel
 		
 		DecimalFormat df = new DecimalFormat("0.00000", new DecimalFormatSymbols(Locale.US));
 		
-		initialize_probabilities(pg);
+		PGProbabilities p = initialize_probabilities(pg);
 
-		assert test_probabilities(pg);
+		assert test_probabilities(pg, p);
 		
 		// use dynamic programming with n * k matrix
 		double[][] F = new double[pg.getNodeCount()][params.maxlen+1];
@@ -615,7 +797,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 		for (PGNode v : pg.getNodes())
 		{
 			F[v.getId()][0] = 0.0;
-			F[v.getId()][1] = Pstart(v) * Pend(v);
+			F[v.getId()][1] = p.Pstart(v) * p.Pend(v);
 			levelsum += F[v.getId()][1];
 		}
 		
@@ -634,7 +816,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 				double val = 0.0;
 				for (PGNode u : v.getNodeNeighbors())
 				{
-					val += F[u.getId()][l-1] * Ptransition(u,v);
+					val += F[u.getId()][l-1] * p.Ptransition(u,v);
 				}
 				
 				F[v.getId()][l] = val;
@@ -658,14 +840,249 @@ public class MarginalMechanismKernel extends SequenceKernel
 		return res;
 	}
 	
-	protected double nontottering_walks(ProductGraph pg)
+	protected double walks(CSRProductGraph pg)
+	{
+		return collapse(pg.getG1(), pg.getG2(), walk_counts(pg));
+	}
+	
+	protected double[] walk_counts(CSRProductGraph pg)
 	{
+		// same DP as above, but with the array product graph and the per-graph tables
+		// directly, only two levels of F are needed at a time
+		
+		GraphProbabilities t1 = tables(pg.getG1());
+		GraphProbabilities t2 = tables(pg.getG2());
+		int nc = pg.nc;
+		
+		// Pt(v|u) for slot s = (v, u), i.e. aligned to the neighbors of 'v'
+		double[] ptin = new double[pg.neighs.length];
+		for (int v = 0; v < nc; v++)
+		{
+			for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+			{
+				int u = pg.neighs[s];
+				ptin[s] = t1.pt[t1.slot(pg.node1[u], pg.node1[v])] * t2.pt[t2.slot(pg.node2[u], pg.node2[v])];
+			}
+		}
+		
+		double[] prev = new double[nc];
+		double[] curr = new double[nc];
+		double[] res = new double[params.maxlen+1];
+		double levelsum = 0.0;
 		double sum = 0.0;
-		for (Double d : nontottering_walk_counts(pg))
-			sum += d;
+		
+		// initialize
+		for (int v = 0; v < nc; v++)
+		{
+			int a1 = pg.node1[v];
+			int a2 = pg.node2[v];
+			prev[v] = (t1.ps[a1] * t2.ps[a2]) * (t1.pe[a1] * t2.pe[a2]);
+			levelsum += prev[v];
+		}
+		
+		// divide by partial normalization
+		if (params.partialnorm)
+			levelsum /= Math.sqrt(Z[pg.getG1().getIndex()][1] * Z[pg.getG2().getIndex()][1]);
+		
+		res[1] = levelsum;
+		sum += res[1];
+		
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			levelsum = 0.0;
+			for (int v = 0; v < nc; v++)
+			{
+				double val = 0.0;
+				for (int s = pg.offsets[v]; s < pg.offsets[v+1]; s++)
+					val += prev[pg.neighs[s]] * ptin[s];
+				
+				curr[v] = val;
+				levelsum += val;
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			
+			if (params.partialnorm)
+				levelsum /= Math.sqrt(Z[pg.getG1().getIndex()][l] * Z[pg.getG2().getIndex()][l]);
+			
+			res[l] = levelsum;
+			
+			double increase = res[l] / sum; // in percentages / 100
+			
+			sum += res[l];
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return res;
+	}
+	
+	protected boolean implicitWalks()
+	{
+		return params.solve && !params.partialnorm && levels == null;
+	}
+	
+	protected double walks(KroneckerProductGraph pg)
+	{
+		// level sums are needed for the partial normalization and the per-length output
+		if (!params.solve || params.partialnorm || levels != null)
+			return super.walks(pg);
+		
+		return geometric_walks(pg);
+	}
+	
+	protected double geometric_walks(KroneckerProductGraph pg)
+	{
+		// the walk DP above sums F_l = (Pt^T)^(l-1) F_1 over all lengths 'l', for 
+		// infinitely long walks the sum has the closed form
+		//
+		// K(G,G') = 1^T (I - Pt^T)^-1 F_1,   F_1 = Ps .* Pe
+		//
+		// where Pt is the masked kronecker product of the transition matrices of
+		// g1 and g2. Pt is never formed, only used through pg.step()
+		
+		GraphProbabilities t1 = tables(pg.getG1());
+		GraphProbabilities t2 = tables(pg.getG2());
+		int n2 = pg.n2;
+		
+		double[][] w1 = transitions(pg.offsets1, pg.neighs1, t1);
+		double[][] w2 = transitions(pg.offsets2, pg.neighs2, t2);
+		
+		double[] b = new double[pg.n1*n2];
+		for (int a1 = 0; a1 < pg.n1; a1++)
+			for (int a2 = 0; a2 < n2; a2++)
+				if (pg.mask[a1*n2 + a2])
+					b[a1*n2 + a2] = (t1.ps[a1] * t2.ps[a2]) * (t1.pe[a1] * t2.pe[a2]);
+		
+		double sum = 0.0;
+		for (double x : solve(pg, w1, w2, b))
+			sum += x;
 		return sum;
 	}
 	
+	// Pt(a|x) for the neighbor 'x' at slot 's' of node 'a' in the class neighborhoods of pg
+	private double[][] transitions(int[][] offsets, int[][] neighs, GraphProbabilities t)
+	{
+		double[][] w = new double[offsets.length][];
+		for (int c = 0; c < offsets.length; c++)
+		{
+			w[c] = new double[neighs[c].length];
+			for (int a = 0; a < offsets[c].length - 1; a++)
+				for (int s = offsets[c][a]; s < offsets[c][a+1]; s++)
+					w[c][s] = t.pt[t.slot(neighs[c][s], a)];
+		}
+		return w;
+	}
+	
+	// solves (I - Pt^T) x = b with BiCGSTAB (the system is not symmetric, thus no plain CG),
+	// finishes with fixed-point iterations x = b + Pt^T x if the solver breaks down
+	protected double[] solve(KroneckerProductGraph pg, double[][] w1, double[][] w2, double[] b)
+	{
+		int n = b.length;
+		double[] x = new double[n];
+		double[] r = b.clone();
+		double[] r0 = b.clone();
+		double[] p = new double[n];
+		double[] v = new double[n];
+		double[] s = new double[n];
+		double[] t = new double[n];
+		double rho = 1.0, alpha = 1.0, omega = 1.0;
+		
+		double bnorm = norm(b);
+		if (bnorm == 0.0)
+			return x;
+		
+		for (int it = 0; it < SOLVE_MAXITER; it++)
+		{
+			double rho1 = dot(r0, r);
+			if (rho1 == 0.0)
+				break;
+			
+			double beta = (rho1 / rho) * (alpha / omega);
+			for (int i = 0; i < n; i++)
+				p[i] = r[i] + beta * (p[i] - omega * v[i]);
+			
+			multiply(pg, w1, w2, p, v);
+			double r0v = dot(r0, v);
+			if (r0v == 0.0)
+				break;
+			alpha = rho1 / r0v;
+			
+			for (int i = 0; i < n; i++)
+				s[i] = r[i] - alpha * v[i];
+			
+			if (norm(s) <= SOLVE_TOLERANCE * bnorm)
+			{
+				for (int i = 0; i < n; i++)
+					x[i] += alpha * p[i];
+				break;
+			}
+			
+			multiply(pg, w1, w2, s, t);
+			double tt = dot(t, t);
+			if (tt == 0.0)
+				break;
+			omega = dot(t, s) / tt;
+			
+			for (int i = 0; i < n; i++)
+			{
+				x[i] += alpha * p[i] + omega * s[i];
+				r[i] = s[i] - omega * t[i];
+			}
+			rho = rho1;
+			
+			if (norm(r) <= SOLVE_TOLERANCE * bnorm || omega == 0.0)
+				break;
+		}
+		
+		// check the true residual, fall back to fixed-point iterations if not converged
+		for (int it = 0; it < SOLVE_MAXITER; it++)
+		{
+			multiply(pg, w1, w2, x, t);
+			for (int i = 0; i < n; i++)
+				r[i] = b[i] - t[i];
+			
+			if (norm(r) <= SOLVE_TOLERANCE * bnorm)
+				break;
+			
+			pg.step(x, t, w1, w2);
+			for (int i = 0; i < n; i++)
+				x[i] = b[i] + t[i];
+		}
+		
+		return x;
+	}
+	
+	// y = (I - Pt^T) x
+	private void multiply(KroneckerProductGraph pg, double[][] w1, double[][] w2, double[] x, double[] y)
+	{
+		pg.step(x, y, w1, w2);
+		for (int i = 0; i < x.length; i++)
+			y[i] = x[i] - y[i];
+	}
+	
+	private double dot(double[] x, double[] y)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < x.length; i++)
+			sum += x[i] * y[i];
+		return sum;
+	}
+	
+	private double norm(double[] x)
+	{
+		return Math.sqrt(dot(x, x));
+	}
+	
+	protected double nontottering_walks(ProductGraph pg)
+	{
+		return collapse(pg.getG1(), pg.getG2(), nontottering_walk_counts(pg));
+	}
+	
 	protected double[] nontottering_walk_counts(ProductGraph pg)
 	{
 		// lets use messages with second order markov model
@@ -684,9 +1101,9 @@ public class MarginalMechanismKernel extends SequenceKernel
 		
 		DecimalFormat df = new DecimalFormat("0.000", new DecimalFormatSymbols(Locale.US));
 		
-		initialize_probabilities(pg);
+		PGProbabilities p = initialize_probabilities(pg);
 		
-		assert test_probabilities(pg);
+		assert test_probabilities(pg, p);
 		
 		int EDGES = pg.getEdgeCount();
 		
@@ -702,7 +1119,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 		for (PGNode v : pg.getNodes())
 		{
 			F[v.getId()][0] = 0.0;
-			F[v.getId()][1] = Pstart(v) * Pend(v);
+			F[v.getId()][1] = p.Pstart(v) * p.Pend(v);
 			
 			levelsum += F[v.getId()][1];
 		}
@@ -720,9 +1137,9 @@ public class MarginalMechanismKernel extends SequenceKernel
 			PGNode tgt = e.getTarget();
 			
 			M[e.getId()][0] = 0.0;
-			M[e.getId()][1] = Pstart(src) * Ptransition(src, tgt);
+			M[e.getId()][1] = p.Pstart(src) * p.Ptransition(src, tgt);
 			M[e.getId()+EDGES][0] = 0.0;
-			M[e.getId()+EDGES][1] = Pstart(tgt) * Ptransition(tgt, src);
+			M[e.getId()+EDGES][1] = p.Pstart(tgt) * p.Ptransition(tgt, src);
 		}
 		
 		levelmass = levelsum;
@@ -746,11 +1163,11 @@ public class MarginalMechanismKernel extends SequenceKernel
 					if (e.getSource() == v)
 						eid += EDGES;
 					
-					val += M[eid][l-1] * Pend(u,v);
+					val += M[eid][l-1] * p.Pend(u,v);
 					
-//					int dt = (int)Math.round(0.90/Ptransition(u,v));
+//					int dt = (int)Math.round(0.90/p.Ptransition(u,v));
 					int dt = count;
-					int de = (int)Math.round(1.00/Pend(u,v));
+					int de = (int)Math.round(1.00/p.Pend(u,v));
 					
 //					System.out.println("" + (u.a1.getId())+(u.a2.getId()) + " -> " + v.a1.getId()+v.a2.getId() + ": Pt=1/" + dt + " Pe=1/" + de + " M=" + M[eid][l-1]);
 				}
@@ -785,7 +1202,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 					if (e2.getSource() == src)
 						eid += EDGES;
 
-					val += M[eid][l-1] * Ptransition(u,src,tgt);
+					val += M[eid][l-1] * p.Ptransition(u,src,tgt);
 				}
 				
 				M[e.getId()][l] = val;
@@ -803,7 +1220,7 @@ public class MarginalMechanismKernel extends SequenceKernel
 					if (e2.getSource() == tgt)
 						eid += EDGES;
 
-					val += M[eid][l-1] * Ptransition(u,tgt,src);
+					val += M[eid][l-1] * p.Ptransition(u,tgt,src);
 				}
 				
 				M[e.getId()+EDGES][l] = val;
@@ -826,6 +1243,150 @@ public class MarginalMechanismKernel extends SequenceKernel
 		
 		return res;
 	}
+	
+	protected double nontottering_walks(CSRProductGraph pg)
+	{
+		return collapse(pg.getG1(), pg.getG2(), nontottering_walk_counts(pg));
+	}
+	
+	protected double[] nontottering_walk_counts(CSRProductGraph pg)
+	{
+		// same message passing as above with the array product graph, messages are
+		// indexed by the directed edge ids (pg.dirs), message (u -> v) of the slot 
+		// s = (v, u) is pg.reverse(pg.dirs[s])
+		
+		GraphProbabilities t1 = tables(pg.getG1());
+		GraphProbabilities t2 = tables(pg.getG2());
+		int nc = pg.nc;
+		int[] offsets = pg.offsets;
+		int[] neighs = pg.neighs;
+		int[] dirs = pg.dirs;
+		int[] node1 = pg.node1;
+		int[] node2 = pg.node2;
+		int EDGES = 2 * pg.ec;
+		
+		// Pt(v|u) and Pe(v|u) for directed edge d = (u -> v), and the slots of d in g1 and g2
+		int[] s1 = new int[EDGES];
+		int[] s2 = new int[EDGES];
+		double[] pt = new double[EDGES];
+		double[] pe2 = new double[EDGES];
+		for (int u = 0; u < nc; u++)
+		{
+			for (int s = offsets[u]; s < offsets[u+1]; s++)
+			{
+				int v = neighs[s];
+				int d = dirs[s];
+				s1[d] = t1.slot(node1[u], node1[v]);
+				s2[d] = t2.slot(node2[u], node2[v]);
+				pt[d] = t1.pt[s1[d]] * t2.pt[s2[d]];
+				pe2[d] = t1.pe2[s1[d]] * t2.pe2[s2[d]];
+			}
+		}
+		
+		// Pt(tgt|u,src) for slot s = (src -> tgt) and the k'th neighbor 'u' of 'src'
+		// in pt2[offsets2[s] + k - offsets[src]]
+		int[] offsets2 = new int[neighs.length+1];
+		for (int src = 0; src < nc; src++)
+			for (int s = offsets[src]; s < offsets[src+1]; s++)
+				offsets2[s+1] = offsets2[s] + (offsets[src+1] - offsets[src]);
+		
+		double[] pt2 = new double[offsets2[neighs.length]];
+		for (int src = 0; src < nc; src++)
+		{
+			for (int s = offsets[src]; s < offsets[src+1]; s++)
+			{
+				int tgt = neighs[s];
+				int k1 = s1[dirs[s]] - t1.offsets[node1[src]];
+				int k2 = s2[dirs[s]] - t2.offsets[node2[src]];
+				
+				for (int k = offsets[src]; k < offsets[src+1]; k++)
+				{
+					int u = neighs[k];
+					if (node1[u] == node1[tgt] || node2[u] == node2[tgt])
+						continue;
+					
+					int din = pg.reverse(dirs[k]);
+					pt2[offsets2[s] + k - offsets[src]] = t1.pt2[t1.offsets2[s1[din]] + k1] * t2.pt2[t2.offsets2[s2[din]] + k2];
+				}
+			}
+		}
+		
+		// only two levels of messages are needed at a time
+		double[] prev = new double[EDGES];
+		double[] curr = new double[EDGES];
+		double[] res = new double[params.maxlen+1];
+		double sum = 0.0;
+		double levelsum = 0.0;
+		
+		// initialize case 1 of probability sums (F)
+		for (int v = 0; v < nc; v++)
+			levelsum += (t1.ps[node1[v]] * t2.ps[node2[v]]) * (t1.pe[node1[v]] * t2.pe[node2[v]]);
+		
+		if (params.partialnorm)
+			levelsum /= Math.sqrt(Z[pg.getG1().getIndex()][1] * Z[pg.getG2().getIndex()][1]);
+		
+		res[1] = levelsum;
+		sum += levelsum;
+		
+		// initialize trivial cases for messages (M)
+		for (int u = 0; u < nc; u++)
+			for (int s = offsets[u]; s < offsets[u+1]; s++)
+				prev[dirs[s]] = (t1.ps[node1[u]] * t2.ps[node2[u]]) * pt[dirs[s]];
+		
+		for (int l = 2; l <= params.maxlen; l++)
+		{
+			levelsum = 0.0;
+			for (int v = 0; v < nc; v++)
+			{
+				double val = 0.0;
+				for (int s = offsets[v]; s < offsets[v+1]; s++)
+				{
+					int din = pg.reverse(dirs[s]);
+					val += prev[din] * pe2[din];
+				}
+				
+				levelsum += val;
+			}
+			
+			if (params.partialnorm)
+				levelsum /= Math.sqrt(Z[pg.getG1().getIndex()][1] * Z[pg.getG2().getIndex()][1]);
+			
+			res[l] = levelsum;
+			
+			// define new messages (M)
+			for (int src = 0; src < nc; src++)
+			{
+				for (int s = offsets[src]; s < offsets[src+1]; s++)
+				{
+					int tgt = neighs[s];
+					
+					double val = 0.0;
+					for (int k = offsets[src]; k < offsets[src+1]; k++)
+					{
+						int u = neighs[k];
+						if (node1[u] == node1[tgt] || node2[u] == node2[tgt])
+							continue;
+						
+						val += prev[pg.reverse(dirs[k])] * pt2[offsets2[s] + k - offsets[src]];
+					}
+					
+					curr[dirs[s]] = val;
+				}
+			}
+			
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			
+			double increase = res[l] / sum; // in percentages / 100
+			
+			sum += res[l];
+			
+			// stop if change in score is negligible -> convergence occurred
+			if (increase < params.epsilon)
+				break;
+		}
+		
+		return res;
+	}
 }
-
-
@@ -0,0 +1,124 @@
+package mechanism.kernels;
+
+import java.util.*;
+
+import mechanism.*;
+import mechanism.graphs.*;
+
+/*
+ * Several sequence kernels computed in a single pass over the graph pairs
+ *
+ * The cells of all kernels are computed together, thus the product graphs of a pair
+ * are built once for all kernels (and dropped once the pair is done). Kernels with the
+ * same diffusion parameter share the diffusion matrices, and marginal kernels with the
+ * same weights share the per-graph probability tables.
+ *
+ * The multi kernel only drives the row loop, the cells are kept by the kernels
+ * themselves, thus it has no matrix of its own.
+ */
+public class MultiKernel extends Kernel
+{
+	private SequenceKernel[] kernels;
+	private boolean[] active; // false if all cells of the kernel are zero
+	private ProductGraphCache pgs;
+
+	public MultiKernel(Graph[] graphs, KernelParams params, SequenceKernel[] kernels)
+	{
+		super(graphs, unstored(params));
+
+		this.kernels = kernels;
+		active = new boolean[kernels.length];
+		pgs = new ProductGraphCache();
+
+		Map<Double,DiffusionCache> diffusions = new HashMap<Double,DiffusionCache>();
+		for (SequenceKernel k : kernels)
+		{
+			k.setProductGraphs(pgs);
+
+			KernelParams p = k.getParams();
+			if (p.kw != KernelWeight.Diffusion)
+				continue;
+
+			if (!diffusions.containsKey(Math.abs(p.beta)))
+				diffusions.put(Math.abs(p.beta), new DiffusionCache(Math.abs(p.beta), params.diffcache, params.spectral));
+			k.setDiffusions(diffusions.get(Math.abs(p.beta)));
+		}
+	}
+
+	public void compute()
+	{
+		for (int k = 0; k < kernels.length; k++)
+		{
+			if (kernels[k] instanceof MarginalMechanismKernel)
+			{
+				MarginalMechanismKernel mk = (MarginalMechanismKernel)kernels[k];
+				for (int o = 0; o < k; o++)
+				{
+					if (kernels[o] instanceof MarginalMechanismKernel && mk.canShareTables((MarginalMechanismKernel)kernels[o]))
+					{
+						mk.shareTables((MarginalMechanismKernel)kernels[o]);
+						break;
+					}
+				}
+			}
+
+			active[k] = kernels[k].prepare();
+		}
+
+		super.compute();
+	}
+
+	public double compute(Graph g1, Graph g2)
+	{
+		double first = 0.0;
+
+		for (int k = 0; k < kernels.length; k++)
+		{
+			if (!active[k])
+				continue;
+
+			double value = kernels[k].compute(g1, g2);
+			kernels[k].setCell(g1.getIndex(), g2.getIndex(), value);
+
+			if (k == 0)
+				first = value;
+		}
+
+		pgs.remove(g1, g2);
+
+		return first;
+	}
+
+	// the params of the row loop, no rows are allocated as when streaming
+	private static KernelParams unstored(KernelParams params)
+	{
+		KernelParams p = params.clone();
+		p.stream = true;
+		p.precision = Precision.FLOAT64;
+		p.direct = false;
+		p.journal = null;
+		return p;
+	}
+	
+	// the cells are set into the kernels by compute(g1,g2)
+	public void setCell(int i, int j, double value)
+	{
+	}
+	
+	// there are no rows to stream, the kernels are written once done
+	protected void openStream()
+	{
+	}
+	
+	public void finishRow(int i)
+	{
+		super.finishRow(i);
+		for (SequenceKernel k : kernels)
+			k.finishRow(i);
+	}
+	
+	public SequenceKernel[] getKernels()
+	{
+		return kernels;
+	}
+}
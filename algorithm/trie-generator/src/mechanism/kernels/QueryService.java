@@ -0,0 +1,260 @@
+package mechanism.kernels;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+import mechanism.*;
+import mechanism.graphs.*;
+
+/*
+ * Kernel rows K(x,.) of new graphs against a preloaded corpus
+ *
+ * The corpus graphs are read and preprocessed once. A request is a line with the
+ * mol file of a new graph and a kernel spec (as in --multi spec files), the answer
+ * is a line with the kernel values of the graph against all corpus graphs:
+ *
+ *   <molfile> [spec]           ok <molfile> <n> <v_1> ... <v_n>     (tab separated)
+ *                              error <molfile> <message>
+ *   ids                        ok ids <n> <id_1> ... <id_n>
+ *
+ * Kernels are built and prepared (tables, diffusions) once per spec. With -n in the
+ * spec the row is normalized, the corpus diagonal is then computed on first use.
+ * Requests are computed in parallel, the answers of a connection come in request
+ * order. Requests are read from stdin or from connections on a local port.
+ */
+public abstract class QueryService
+{
+	private Graph[] graphs;
+	private boolean molecules;
+	private ExecutorService pool;
+	private Map<String,Entry> kernels = new HashMap<String,Entry>();
+
+	// a prepared kernel and the diagonal of the corpus, if needed
+	private static class Entry
+	{
+		private Kernel k;
+		private boolean zero; // all values are zero, e.g. exponential weights of alpha <= 0
+		private double[] diagonal;
+	}
+
+	// 'molecules' if the queries are molecule graphs instead of reaction graphs
+	public QueryService(Graph[] graphs, boolean molecules, int threads)
+	{
+		this.graphs = graphs;
+		this.molecules = molecules;
+		pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	// kernel of 'spec' over the corpus, with a matrix of no rows
+	protected abstract Kernel kernel(String spec);
+
+	// answers the requests of stdin on stdout
+	public void serve() throws IOException
+	{
+		System.out.println("ready " + graphs.length);
+		System.out.flush();
+
+		serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(new OutputStreamWriter(System.out)));
+		pool.shutdown();
+	}
+
+	// answers the requests of connections to 'port' on the loopback interface
+	public void serve(int port) throws IOException
+	{
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("Serving " + graphs.length + " graphs on port " + server.getLocalPort());
+
+		while (true)
+		{
+			final Socket s = server.accept();
+			Thread t = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						serve(new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8")), new PrintWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8")));
+						s.close();
+					}
+					catch (IOException e)
+					{
+						System.out.println("Connection closed: " + e.getMessage());
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	// requests are computed on the pool, a writer thread answers them in order
+	private void serve(BufferedReader in, final PrintWriter out) throws IOException
+	{
+		final BlockingQueue<Future<String>> answers = new LinkedBlockingQueue<Future<String>>();
+		final Future<String> eof = new FutureTask<String>(new Callable<String>() { public String call() { return null; } });
+
+		Thread writer = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					Future<String> f;
+					while ((f = answers.take()) != eof)
+					{
+						try
+						{
+							out.println(f.get());
+						}
+						catch (ExecutionException e)
+						{
+							out.println("error\t" + e.getCause());
+						}
+						out.flush();
+					}
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		};
+		writer.start();
+
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			final String request = line.trim();
+			if (request.length() == 0)
+				continue;
+			if (request.equals("quit"))
+				break;
+
+			answers.add(pool.submit(new Callable<String>()
+			{
+				public String call()
+				{
+					return answer(request);
+				}
+			}));
+		}
+
+		answers.add(eof);
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+
+	protected String answer(String request)
+	{
+		if (request.equals("ids"))
+		{
+			StringBuilder sb = new StringBuilder("ok ids\t" + graphs.length);
+			for (Graph g : graphs)
+				sb.append('\t').append(Kernel.graphId(g));
+			return sb.toString();
+		}
+
+		int sep = request.indexOf(' ');
+		String file = sep < 0 ? request : request.substring(0, sep);
+		String spec = sep < 0 ? "" : request.substring(sep + 1).trim();
+
+		try
+		{
+			double[] row = row(file, spec);
+
+			StringBuilder sb = new StringBuilder("ok " + file + "\t" + row.length);
+			for (double v : row)
+				sb.append('\t').append(Double.toString(v));
+			return sb.toString();
+		}
+		catch (Exception e)
+		{
+			return "error " + file + "\t" + e;
+		}
+	}
+
+	// kernel values of the graph of 'file' against the corpus
+	public double[] row(String file, String spec) throws IOException
+	{
+		if (!new File(file).isFile())
+			throw new FileNotFoundException(file);
+
+		Graph x = molecules ? new MoleculeGraph(file) : new ReactionGraph(file);
+		x.setIndex(-1);
+		x.computeDistances();
+
+		Entry e = entry(spec);
+		double[] row = new double[graphs.length];
+		if (e.zero)
+			return row;
+
+		// the graph is preprocessed once for the whole row
+		e.k.prepare(x);
+		try
+		{
+			for (int i = 0; i < graphs.length; i++)
+				row[i] = e.k.compute(x, graphs[i]);
+
+			if (e.diagonal != null)
+			{
+				double xx = e.k.compute(x, x);
+				for (int i = 0; i < graphs.length; i++)
+				{
+					if (Math.sqrt(xx * e.diagonal[i]) != 0.0)
+						row[i] /= Math.sqrt(xx * e.diagonal[i]);
+					else
+						row[i] = 0.0;
+				}
+			}
+		}
+		finally
+		{
+			e.k.release(x);
+		}
+		return row;
+	}
+
+	private Entry entry(String spec)
+	{
+		Entry e;
+		synchronized (kernels)
+		{
+			e = kernels.get(spec);
+			if (e == null)
+			{
+				e = new Entry();
+				kernels.put(spec, e);
+			}
+		}
+
+		// the first request of a spec prepares its kernel, the others wait for it
+		synchronized (e)
+		{
+			if (e.k != null)
+				return e;
+
+			Kernel k = kernel(spec);
+			if (k.getParams().partialnorm)
+				throw new IllegalArgumentException("-pn is not supported for queries");
+			e.zero = k instanceof SequenceKernel && !((SequenceKernel)k).prepare();
+
+			if (k.getParams().normalize && !e.zero)
+			{
+				e.diagonal = new double[graphs.length];
+				for (int i = 0; i < graphs.length; i++)
+					e.diagonal[i] = k.compute(graphs[i], graphs[i]);
+			}
+
+			e.k = k;
+			return e;
+		}
+	}
+}
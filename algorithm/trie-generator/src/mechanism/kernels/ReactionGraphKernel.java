@@ -111,21 +111,21 @@ public class ReactionGraphKernel extends MarginalMechanismKernel
 		// construct product graph
 		long pgtime = System.currentTimeMillis();
 		ProductGraph pg = new ProductGraph(g1, g2, params, false);
-		this.pgtime += System.currentTimeMillis() - pgtime;
+		this.pgtime.addAndGet(System.currentTimeMillis() - pgtime);
 
 		// use dynamic programming
 		long walktime = System.currentTimeMillis();
 		double value = walks(pg);
-		this.walktime += System.currentTimeMillis() - walktime;
+		this.walktime.addAndGet(System.currentTimeMillis() - walktime);
 		
-		counted++;
+		counted.incrementAndGet();
 		
 		return value;	
 	}
 
 	protected double walks(ProductGraph pg)
 	{
-		initialize_probabilities(pg);
+		PGProbabilities p = initialize_probabilities(pg);
 		
 		// use dynamic programming with n * k matrix
 		double[][] F = new double[pg.getNodeCount()][params.maxlen+1];
@@ -136,7 +136,7 @@ public class ReactionGraphKernel extends MarginalMechanismKernel
 		for (PGNode v : pg.getNodes())
 		{
 			F[v.getId()][0] = 0.0;
-			F[v.getId()][1] = Pstart(v) * Pend(v) * moleculekernel.getValue(((RGKNode)v.a1).getMolIndex(), ((RGKNode)v.a2).getMolIndex());
+			F[v.getId()][1] = p.Pstart(v) * p.Pend(v) * moleculekernel.getValue(((RGKNode)v.a1).getMolIndex(), ((RGKNode)v.a2).getMolIndex());
 			sum += F[v.getId()][1];
 		}
 		
@@ -148,7 +148,7 @@ public class ReactionGraphKernel extends MarginalMechanismKernel
 				double val = 0.0;
 				for (PGNode u : v.getNodeNeighbors())
 				{
-					val += F[u.getId()][l-1] * Ptransition(u,v);
+					val += F[u.getId()][l-1] * p.Ptransition(u,v);
 				}
 				
 				F[v.getId()][l] = val * moleculekernel.getValue(((RGKNode)v.a1).getMolIndex(), ((RGKNode)v.a2).getMolIndex());
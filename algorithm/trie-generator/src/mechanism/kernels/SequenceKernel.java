@@ -10,36 +10,95 @@ import mechanism.graphs.*;
  */
 public abstract class SequenceKernel extends Kernel
 {
+	// product graphs shared with other kernels, null if built for each pair
+	protected ProductGraphCache pgs = null;
+	
+	// admission of the pairs by their product graph footprint, shared by all kernels
+	protected MemoryGate gate;
+	
 	public SequenceKernel(Graph[] graphs, KernelParams params)
 	{
 		super(graphs, params);
 		
+		gate = MemoryGate.shared(params.memory);
+		
 		if (params.kw == KernelWeight.Diffusion)
 		{
-			diffs = new HashMap<Graph,Diffusion>(); // from 'Kernel' superclass
+			diffs = new DiffusionCache(Math.abs(params.beta), params.diffcache, params.spectral); // from 'Kernel' superclass, shared by worker threads
 		}
 	}
 
+	public void compute()
+	{
+		// the gate counts over all kernels
+		int held = gate.getHeld();
+		int fallbacks = gate.getFallbacks();
+		
+		super.compute();
+		
+		held = gate.getHeld() - held;
+		fallbacks = gate.getFallbacks() - fallbacks;
+		if (held > 0 || fallbacks > 0)
+			System.out.println(held + " pairs waited for memory, " + fallbacks + " pairs computed on the implicit graph"
+				+ " (budget " + (gate.getBudget() >> 20) + " MB)");
+	}
+
+	
 	public double compute(Graph g1, Graph g2)
 	{
-		// if diffusion model used, precompute them
-		if (params.kw == KernelWeight.Diffusion)
+		// the pair waits until its product graph fits next to the others, and a pair that
+		// never fits is computed on the implicit graph if this kernel can
+		boolean implicit = implicit(false);
+		boolean lowmem = false;
+		long bytes = MemoryGate.footprint(g1, g2, params);
+		if (implicit)
+			bytes = MemoryGate.implicitFootprint(g1, g2);
+		if (!implicit && !gate.fits(bytes) && implicitWalks())
 		{
-			// compute diffusion matrices
-			diffs.put(g1, new Diffusion(g1, Math.abs(params.beta))); // from 'Kernel' superclass
-			diffs.put(g2, new Diffusion(g2, Math.abs(params.beta)));
+			lowmem = true;
+			bytes = MemoryGate.implicitFootprint(g1, g2);
+			gate.fallback();
 		}
 		
-		// construct product graph
+		gate.acquire(bytes);
+		try
+		{
+			return compute(g1, g2, lowmem);
+		}
+		finally
+		{
+			gate.release(bytes);
+		}
+	}
+	
+	// 'lowmem' walks on the implicit graph instead of the array product graph
+	protected double compute(Graph g1, Graph g2, boolean lowmem)
+	{
+		// diffusion matrices are computed on first use in 'diffs'
+		
+		// paths are enumerated on the original graphs, walks use the array product graph
 		long pgtime = System.currentTimeMillis();
 		
-		ProductGraph pg;
-		if (params.reduced)
-			pg = new ReducedProductGraph(g1, g2, params);
+		ProductGraph pg = null;
+		CSRProductGraph csr = null;
+		KroneckerProductGraph kpg = null;
+		if (params.paths && pgs != null)
+			pg = pgs.getProductGraph(g1, g2, params);
+		else if (params.paths)
+		{
+			if (params.reduced)
+				pg = new ReducedProductGraph(g1, g2, params);
+			else
+				pg = new ProductGraph(g1, g2, params);
+		}
+		else if (implicit(lowmem))
+			kpg = new KroneckerProductGraph(g1, g2, params);
+		else if (pgs != null)
+			csr = pgs.getCSR(g1, g2, params);
 		else
-			pg = new ProductGraph(g1, g2, params);
+			csr = new CSRProductGraph(g1, g2, params);
 		
-		this.pgtime += System.currentTimeMillis() - pgtime;
+		this.pgtime.addAndGet(System.currentTimeMillis() - pgtime);
 
 		// use dynamic programming
 		long walktime = System.currentTimeMillis();
@@ -48,17 +107,44 @@ public abstract class SequenceKernel extends Kernel
 		if (params.paths)
 			value = paths(pg);
 		else if (params.nontottering)
-			value = nontottering_walks(pg);
+			value = nontottering_walks(csr);
+		else if (kpg != null)
+			value = walks(kpg);
 		else
-			value = walks(pg);
+			value = walks(csr);
 		
-		this.walktime += System.currentTimeMillis() - walktime;
+		this.walktime.addAndGet(System.currentTimeMillis() - walktime);
 		
-		counted++;
+		counted.incrementAndGet();
 		
 		return value;
 	}
 	
+	// per-graph work done before the cells are computed, false if all cells are zero
+	public boolean prepare()
+	{
+		return true;
+	}
+	
+	// true if walks(KroneckerProductGraph) is a DP of its own, i.e. needs no array product graph
+	protected boolean implicitWalks()
+	{
+		return false;
+	}
+	
+	// true if the walks of a pair are computed on the implicit graph, 'lowmem' if the
+	// array product graph doesn't fit
+	protected boolean implicit(boolean lowmem)
+	{
+		return (params.implicit || params.solve || lowmem) && !params.nontottering && !params.paths && implicitWalks();
+	}
+	
+	// share product graphs with other kernels, e.g. over a parameter sweep
+	public void setProductGraphs(ProductGraphCache pgs)
+	{
+		this.pgs = pgs;
+	}
+	
 	// standard weighting function gives singular weight
 	protected double weight(Node[] atoms)
 	{
@@ -67,6 +153,14 @@ public abstract class SequenceKernel extends Kernel
 	
 	abstract protected double walks(ProductGraph pg);
 	abstract protected double nontottering_walks(ProductGraph pg);
+	abstract protected double walks(CSRProductGraph pg);
+	abstract protected double nontottering_walks(CSRProductGraph pg);
+	
+	// kernels without an implicit walk DP use the array product graph
+	protected double walks(KroneckerProductGraph pg)
+	{
+		return walks(new CSRProductGraph(pg.getG1(), pg.getG2(), params));
+	}
 	
 	
 	/*
@@ -58,16 +58,25 @@ public class ShortestPathsKernel extends Kernel
 	}
 }
 
+// instance per call, the kernel is computed from several threads
 class FloydWarshall
 {
-	private static int[][] cost;
-	private static int[][] next;
-	private static Graph g;
+	private int[][] cost;
+	private int[][] next;
+	private Graph g;
+	
+	private FloydWarshall(Graph g)
+	{
+		this.g = g;
+	}
 	
 	public static Map<String,Integer> floydwarshall(Graph g)
 	{
-		FloydWarshall.g = g;
-		
+		return new FloydWarshall(g).shortestpaths();
+	}
+	
+	private Map<String,Integer> shortestpaths()
+	{
 		// initializes to zeros
 		int N = g.getSize();
 		cost = new int[N][N];
@@ -144,7 +153,7 @@ class FloydWarshall
 		return spcounts;
 	}
 	
-	private static String getpath(int i, int j)
+	private String getpath(int i, int j)
 	{
 		// no path
 		if (cost[i][j] == Integer.MAX_VALUE/2)
@@ -51,8 +51,8 @@ public class SubgraphsKernel extends Kernel
 		// compute only the lower left triangle
 		for (int i = params.start-1; i < params.end; i++)
 		{
-			pgtime = 0;
-			walktime = 0;
+			pgtime.set(0);
+			walktime.set(0);
 			
 			// compute i only once
 			current_sg = new Subgraphs(graphs[i]);
@@ -60,11 +60,12 @@ public class SubgraphsKernel extends Kernel
 			
 			for (int j = 0; j <= i; j++)
 			{
-				matrix[i-params.start+1][j] = (float)compute(graphs[i], graphs[j]);
+				setCell(i, j, (float)compute(graphs[i], graphs[j]));
 			}
+			finishRow(i);
 			
-			totalpgtime += pgtime;
-			totalwalktime += walktime;
+			totalpgtime.addAndGet(pgtime.get());
+			totalwalktime.addAndGet(walktime.get());
 			
 			String dir = "";
 			if (graphs[i].getDirection() == 1)